@@ -0,0 +1,54 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures InkClock.raiseOnTick fanning a tick out to its listeners
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClockBenchmark {
+
+	/**
+	 * Number of listeners
+	 */
+	@Param({"1", "4", "16"})
+	public int listeners;
+
+	private InkClockRender clock;
+	private long tick = 0;
+
+	@Setup
+	public void setUp() {
+		clock = new InkClockRender(24, 120, Long.MAX_VALUE);
+		for (int i = 0; i < listeners; i++) {
+			clock.addListener(new CountingListener());
+		}
+	}
+
+	@Benchmark
+	public void raiseOnTick() {
+		clock.raiseOnTick(tick++);
+	}
+
+}
+
+/**
+ * Clock listener that counts ticks
+ */
+class CountingListener implements InkClockListener {
+
+	long ticks = 0;
+
+	public void onTick(long tick) { ticks++; }
+	public void onStop(long tick) { }
+	public void onStart(long tick) { }
+	public void onContinue(long tick) { }
+	public void onQuarterNote(long tick) { }
+
+}
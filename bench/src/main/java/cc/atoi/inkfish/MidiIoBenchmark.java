@@ -0,0 +1,81 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures sending short messages through MidiOutput, and MidiIoObject
+ * writing notes with a tick length and draining the NOTE_OFFs from its
+ * queue on the next tick. Run with "-prof gc" to see allocation per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MidiIoBenchmark {
+
+	/**
+	 * Number of notes written per tick
+	 */
+	@Param({"1", "8", "32"})
+	public int notes;
+
+	private NullMidiOutput out;
+	private MidiIoObject io;
+	private ShortMessage smsg;
+	private long tick = 0;
+
+	@Setup
+	public void setUp() throws InvalidMidiDataException {
+		out = new NullMidiOutput();
+		io = new MidiIoObject();
+		io.initialize(out, new InkClockRender(24, 120, Long.MAX_VALUE), 24);
+		smsg = new ShortMessage();
+		smsg.setMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+	}
+
+	/**
+	 * MidiOutput.writeShort from message values, as used by scripts
+	 */
+	@Benchmark
+	public void writeShort() throws InvalidMidiDataException {
+		for (int i = 0; i < notes; i++) {
+			out.writeShort(ShortMessage.NOTE_ON, 0, 36 + i, 100);
+		}
+	}
+
+	/**
+	 * MidiOutput.writeShort of a prepared message
+	 */
+	@Benchmark
+	public void writeShortMessage() throws InvalidMidiDataException {
+		for (int i = 0; i < notes; i++) {
+			out.writeShort(smsg);
+		}
+	}
+
+	/**
+	 * MidiIoObject.jsFunction_write of NOTE_ONs lasting one tick, then
+	 * MidiIoObject.onTick sending their NOTE_OFFs
+	 */
+	@Benchmark
+	public void writeAndDrain() {
+		for (int i = 0; i < notes; i++) {
+			io.jsFunction_write(ShortMessage.NOTE_ON, 0, 36 + i, 100, 1, 0, 0);
+		}
+		io.onTick(++tick);
+	}
+
+	/**
+	 * MidiIoObject.onTick with nothing due
+	 */
+	@Benchmark
+	public void onTickIdle() {
+		io.onTick(++tick);
+	}
+
+}
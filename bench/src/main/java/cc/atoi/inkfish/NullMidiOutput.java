@@ -0,0 +1,50 @@
+package cc.atoi.inkfish;
+
+import javax.sound.midi.*;
+
+/**
+ * A MIDI output that discards messages after counting them, so benchmarks
+ * measure Inkfish rather than a device driver
+ */
+public class NullMidiOutput extends MidiOutput implements Receiver {
+
+	/**
+	 * Number of messages sent
+	 */
+	public long count = 0;
+
+	/**
+	 * Sum of the status bytes of messages sent
+	 */
+	public long statusSum = 0;
+
+	public NullMidiOutput() {
+		this.receiver = this;
+	}
+
+	/**
+	 * Returns the name of this output
+	 */
+	public String getName() {
+		return "null";
+	}
+
+	/**
+	 * Counts a message
+	 */
+	public void send(MidiMessage msg, long ts) {
+		count++;
+		statusSum += msg.getStatus();
+	}
+
+	/**
+	 * No implementation
+	 */
+	public void close() { }
+
+	/**
+	 * No device to close
+	 */
+	protected void finalize() { }
+
+}
@@ -0,0 +1,99 @@
+package cc.atoi.inkfish;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.ShortMessage;
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures ticks and MIDI messages reaching the 'ontick' and 'onmidiin'
+ * functions of a user script through Rhino, both called directly on the
+ * benchmark thread and forwarded through the script loop (waiting until the
+ * script thread has handled them). Inkfish is started on an idle virtual
+ * sequencer, so ticks only come from the benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+
+	private static final String SCRIPT =
+		  "var count = 0;\n"
+		+ "function ontick(t) { count += t & 1; }\n"
+		+ "function onmidiin(alias, command, channel, data1, data2, ts, event) { count += data1; }\n";
+
+	private File dir;
+	private Inkfish inkfish;
+	private Context cx;
+	private MidiInput input;
+	private ShortMessage msg;
+	private long tick = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		dir = File.createTempFile("inkfish-bench", "");
+		dir.delete();
+		dir.mkdir();
+		FileWriter writer = new FileWriter(new File(dir, "bench.js"));
+		try {
+			writer.write(SCRIPT);
+		}
+		finally {
+			writer.close();
+		}
+		inkfish = new Inkfish(Inkfish.parseArgs(new String[] {
+			"--dir", dir.getPath(),
+			"--seq", "virtual:bench-idle",
+			"--in", "virtual:bench-in:input",
+			"--divisor", "1"
+		}));
+		input = inkfish.midiIns.get("input");
+		msg = new ShortMessage();
+		msg.setMessage(ShortMessage.NOTE_ON, 0, 60, 100);
+		cx = Context.enter();
+	}
+
+	@TearDown
+	public void tearDown() {
+		Context.exit();
+		delete(dir);
+	}
+
+	@Benchmark
+	public void onScriptTick() {
+		inkfish.onScriptTick(cx, tick++);
+	}
+
+	@Benchmark
+	public void onScriptMidiIn() {
+		inkfish.onScriptMidiIn(cx, input, msg, -1);
+	}
+
+	@Benchmark
+	public void forwardTickToJs() {
+		inkfish.forwardTickToJs(tick++);
+		inkfish.scriptLoop.awaitIdle();
+	}
+
+	@Benchmark
+	public void forwardMidiToJs() {
+		inkfish.forwardMidiToJs(input, msg, -1);
+		inkfish.scriptLoop.awaitIdle();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
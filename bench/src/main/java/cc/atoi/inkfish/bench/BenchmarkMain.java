@@ -0,0 +1,21 @@
+package cc.atoi.inkfish.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Entry point of benchmarks.jar. Runs JMH with the given arguments, writing
+ * results as JSON to jmh-result.json unless a result format or file is given,
+ * so runs of different releases can be compared.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-rf") && !jmhArgs.contains("-rff")) {
+			jmhArgs.addAll(0, Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+		}
+		org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+
+}
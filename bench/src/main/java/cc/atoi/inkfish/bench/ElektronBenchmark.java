@@ -0,0 +1,102 @@
+package cc.atoi.inkfish.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the Elektron SysEx codecs: run-length packing and unpacking of
+ * pattern data, and 8-to-7 bit encoding and 7-to-8 bit decoding. The plugins
+ * are in the default package, which JMH benchmarks cannot be in, so the
+ * codecs are called through method handles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElektronBenchmark {
+
+	/**
+	 * Number of bytes of data
+	 */
+	@Param({"256", "4096"})
+	public int length;
+
+	private Object elektron;
+	private MethodHandle pack;
+	private MethodHandle unpack;
+	private MethodHandle encode;
+	private MethodHandle decode;
+	private byte[] raw;
+	private byte[] packed;
+	private ArrayList<Byte> rawList;
+	private byte[] encoded;
+	private int[] rawRanges;
+	private int[] encodedRanges;
+
+	@Setup
+	public void setUp() throws Throwable {
+		Class<?> machinedrum = Class.forName("ElektronMachinedrumObject");
+		Class<?> base = machinedrum.getSuperclass();
+		elektron = machinedrum.newInstance();
+		pack = handle(base, "pack", byte[].class, int.class, int.class);
+		unpack = handle(base, "unpack", byte[].class);
+		encode = handle(base, "encode", ArrayList.class, int[].class);
+		decode = handle(base, "decode", byte[].class, int[].class);
+
+		// Random bytes with runs of repeats, as in pattern data
+		Random random = new Random(1);
+		raw = new byte[length];
+		rawList = new ArrayList<Byte>(length);
+		for (int i = 0; i < length; i++) {
+			raw[i] = i > 0 && random.nextInt(3) == 0 ? raw[i - 1] : (byte)random.nextInt(256);
+			rawList.add(raw[i]);
+		}
+
+		packed = toArray((ArrayList<?>)pack.invoke(elektron, raw, 0, length));
+		rawRanges = new int[] { 0, length };
+		encoded = toArray((ArrayList<?>)encode.invoke(elektron, rawList, rawRanges));
+		encodedRanges = new int[] { 0, encoded.length };
+	}
+
+	@Benchmark
+	public Object pack() throws Throwable {
+		return pack.invoke(elektron, raw, 0, length);
+	}
+
+	@Benchmark
+	public Object unpack() throws Throwable {
+		return unpack.invoke(elektron, packed);
+	}
+
+	@Benchmark
+	public Object encode() throws Throwable {
+		return encode.invoke(elektron, rawList, rawRanges);
+	}
+
+	@Benchmark
+	public Object decode() throws Throwable {
+		return decode.invoke(elektron, encoded, encodedRanges);
+	}
+
+	private static MethodHandle handle(Class<?> cls, String name, Class<?>... params) throws Exception {
+		Method method = cls.getDeclaredMethod(name, params);
+		method.setAccessible(true);
+		return MethodHandles.lookup().unreflect(method);
+	}
+
+	private static byte[] toArray(ArrayList<?> list) {
+		byte[] bytes = new byte[list.size()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (Byte)list.get(i);
+		}
+		return bytes;
+	}
+
+}
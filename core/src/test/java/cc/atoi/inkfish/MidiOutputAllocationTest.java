@@ -0,0 +1,92 @@
+package cc.atoi.inkfish;
+
+import java.lang.management.ManagementFactory;
+import javax.sound.midi.*;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that writing short messages does not allocate on the heap
+ */
+public class MidiOutputAllocationTest {
+
+	/**
+	 * Number of messages written per measurement
+	 */
+	private static final int WRITES = 100000;
+
+	/**
+	 * Bytes a measurement may allocate regardless of the number of writes
+	 * (e.g. for reading the allocation counter itself)
+	 */
+	private static final long SLACK_BYTES = 4096;
+
+	private com.sun.management.ThreadMXBean threads;
+	private MidiOutput output;
+	private CountingReceiver receiver;
+
+	@Before
+	public void setUp() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		receiver = new CountingReceiver();
+		output = new MidiOutput() { };
+		output.receiver = receiver;
+	}
+
+	@Test
+	public void writeShortDoesNotAllocate() throws InvalidMidiDataException {
+		writeShorts();
+		long before = allocatedBytes();
+		writeShorts();
+		long allocated = allocatedBytes() - before;
+		assertEquals(2 * WRITES, receiver.count);
+		assertTrue("writeShort allocated " + allocated + " bytes", allocated < SLACK_BYTES);
+	}
+
+	@Test
+	public void writePackedDoesNotAllocate() throws InvalidMidiDataException {
+		writePacked();
+		long before = allocatedBytes();
+		writePacked();
+		long allocated = allocatedBytes() - before;
+		assertEquals(2 * WRITES, receiver.count);
+		assertTrue("writePacked allocated " + allocated + " bytes", allocated < SLACK_BYTES);
+	}
+
+	private void writeShorts() throws InvalidMidiDataException {
+		for (int i = 0; i < WRITES; i++) {
+			output.writeShort(ShortMessage.NOTE_ON, i & 0x0F, i & 0x7F, 100);
+		}
+	}
+
+	private void writePacked() throws InvalidMidiDataException {
+		for (int i = 0; i < WRITES; i++) {
+			output.writePacked(MidiOutput.pack(ShortMessage.CONTROL_CHANGE, i & 0x0F, 1, i & 0x7F));
+		}
+	}
+
+	private long allocatedBytes() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Receiver that counts messages without keeping them
+	 */
+	private static class CountingReceiver implements Receiver {
+
+		int count = 0;
+
+		public void send(MidiMessage msg, long ts) {
+			count++;
+		}
+
+		public void close() { }
+
+	}
+
+}
@@ -16,6 +16,7 @@ abstract public class ElektronObject extends ScriptableObject implements Scripta
 	protected MidiInput elektronIn;
 	protected MidiOutput elektronOut;
 	protected byte[] pattern;
+	protected byte[] sysexBuffer = new byte[64];
 	protected byte originalPosition;
 	protected byte baseChannel = 0;
 
@@ -133,16 +134,16 @@ abstract public class ElektronObject extends ScriptableObject implements Scripta
 	protected boolean send(byte[] bytes) {
 		
 		int msgLength = bytes.length + SYSEX_START.length + SYSEX_END.length;
-		byte[] msgBytes = new byte[msgLength];
-		System.arraycopy(SYSEX_START, 0, msgBytes, 0, SYSEX_START.length);
-		msgBytes[4] = getDeviceByte();
-		System.arraycopy(bytes, 0, msgBytes, SYSEX_START.length, bytes.length);
-		System.arraycopy(SYSEX_END, 0, msgBytes, SYSEX_START.length + bytes.length, SYSEX_END.length);
+		if (sysexBuffer.length < msgLength) {
+			sysexBuffer = new byte[msgLength];
+		}
+		System.arraycopy(SYSEX_START, 0, sysexBuffer, 0, SYSEX_START.length);
+		sysexBuffer[4] = getDeviceByte();
+		System.arraycopy(bytes, 0, sysexBuffer, SYSEX_START.length, bytes.length);
+		System.arraycopy(SYSEX_END, 0, sysexBuffer, SYSEX_START.length + bytes.length, SYSEX_END.length);
 		
-		SysexMessage msg = new SysexMessage();
 		try {
-			msg.setMessage(msgBytes, msgLength);
-			elektronOut.send(msg);
+			elektronOut.writeSysex(sysexBuffer, msgLength);
 		}
 		catch (InvalidMidiDataException e) {
 			return false;
@@ -113,11 +113,9 @@ public class LaunchpadObject extends ScriptableObject implements Scriptable, Mid
 		fArgs[0] = this;
 		System.arraycopy(args, 0, fArgs, 1, args.length);
 
-		// Enter new context for this thread
-		Context jsContext = Context.enter();
-		
-		// Call function with arguments including self as first param
-		func.call(jsContext, jsScope, jsScope, fArgs);
+		// Call function with arguments including self as first param on the
+		// script thread
+		ScriptLoop.getInstance().postCall(func, jsScope, fArgs);
 	}
 	
 	/**
@@ -0,0 +1,36 @@
+package cc.atoi.inkfish;
+
+/**
+ * Simple struct of the number and duration of calls into a function. Only
+ * written by the thread making the calls.
+ */
+class CallTimer {
+
+	/**
+	 * Number of calls
+	 */
+	volatile long count = 0;
+
+	/**
+	 * Total duration of all calls in nanoseconds
+	 */
+	volatile long totalNanos = 0;
+
+	/**
+	 * Duration of the longest call in nanoseconds
+	 */
+	volatile long maxNanos = 0;
+
+	/**
+	 * Records a call
+	 * @param nanos duration of the call in nanoseconds
+	 */
+	void record(long nanos) {
+		count++;
+		totalNanos += nanos;
+		if (nanos > maxNanos) {
+			maxNanos = nanos;
+		}
+	}
+
+}
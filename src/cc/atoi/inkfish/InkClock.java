@@ -8,6 +8,12 @@ import java.util.ArrayList;
  */
 abstract public class InkClock {
 
+	/**
+	 * Ticks raised more than this many nanoseconds after they were due are
+	 * counted as late
+	 */
+	public static final long LATE_TICK_NANOS = 1000000L;
+
 	/**
 	 * A list of listeners / subscribers to sequencing events
 	 */
@@ -25,6 +31,35 @@ abstract public class InkClock {
 	 */
 	protected long tick;
 	
+	/**
+	 * Time at which the current tick is due in System.nanoTime() units. This
+	 * is later than the time the tick is raised if the sequencer raises ticks
+	 * ahead of time.
+	 */
+	protected volatile long tickNanos;
+	
+	/**
+	 * Groove template shifting tick deadlines, or null for even ticks. Only
+	 * applied by sequencers that time ticks themselves.
+	 */
+	protected volatile InkGroove groove;
+	
+	/**
+	 * Histogram of how late ticks are raised, or null if not measured
+	 */
+	protected volatile LatencyHistogram tickStats;
+	
+	/**
+	 * Number of ticks raised. Only written by the thread raising ticks.
+	 */
+	protected volatile long ticksRaised = 0;
+	
+	/**
+	 * Number of ticks raised late (see LATE_TICK_NANOS). Only written by the
+	 * thread raising ticks.
+	 */
+	protected volatile long lateTicks = 0;
+	
 	/**
 	 * A flag that denotes whether the sequencer is currently running
 	 */
@@ -55,15 +90,71 @@ abstract public class InkClock {
 	 */
 	public long getTick() { return tick; }
 	
+	/**
+	 * Returns the time at which the current tick is due in System.nanoTime()
+	 * units
+	 */
+	public long getTickNanos() { return tickNanos; }
+	
+	/**
+	 * Sets the groove template, or null for even ticks
+	 */
+	public void setGroove(InkGroove groove) { this.groove = groove; }
+	
+	/**
+	 * Returns the groove template, or null if there is none
+	 */
+	public InkGroove getGroove() { return groove; }
+	
+	/**
+	 * Sets the histogram recording how late ticks are raised, or null to
+	 * stop measuring
+	 */
+	public void setStats(LatencyHistogram tickStats) { this.tickStats = tickStats; }
+	
+	/**
+	 * Returns the histogram recording how late ticks are raised, or null if
+	 * not measured
+	 */
+	public LatencyHistogram getStats() { return tickStats; }
+	
+	/**
+	 * Returns the number of ticks raised
+	 */
+	public long getTicksRaised() { return ticksRaised; }
+	
+	/**
+	 * Returns the number of ticks raised late (see LATE_TICK_NANOS)
+	 */
+	public long getLateTicks() { return lateTicks; }
+	
 	/**
 	 * Returns whether or not the sequencer is running
 	 */
 	public boolean isRunning() { return isRunning; }
 	
+	/**
+	 * Counts the tick being raised if it is late and records how late it is,
+	 * if measured. Sequencers call this just before raiseOnTick.
+	 * @param dueNanos time the tick should be raised at in System.nanoTime()
+	 * 				units
+	 */
+	protected void recordTick(long dueNanos) {
+		long late = System.nanoTime() - dueNanos;
+		if (late > LATE_TICK_NANOS) {
+			lateTicks++;
+		}
+		LatencyHistogram h = tickStats;
+		if (h != null) {
+			h.record(late);
+		}
+	}
+	
 	/**
 	 * Raises onTick events for all listeners
 	 */
 	public void raiseOnTick(long tick) {
+		ticksRaised++;
 		for (InkClockListener l : listeners) l.onTick(tick);
 	}
 	
@@ -6,9 +6,27 @@ import javax.sound.midi.ShortMessage;
 /**
  * An external MIDI-based sequencer. This class listens for MIDI timecode
  * messages and triggers the appropriate events on the listener. 
+ *
+ * The phase and period of the incoming pulses are tracked by a phase-locked
+ * loop (an alpha-beta filter), which also gives the tempo. With smoothing
+ * enabled, ticks are no longer raised as pulses arrive but on a generator
+ * thread at the estimated pulse times, optionally several ticks per pulse,
+ * so delivery jitter of the input does not reach the listeners. If pulses
+ * stop arriving without a STOP message, the generator keeps going at the
+ * last tempo for a quarter note and then waits for the input to return.
  * @author Adam Saponara
  */
-public class InkClockExternalMidi extends InkClockExternal implements MidiInputListener {
+public class InkClockExternalMidi extends InkClockExternal implements MidiInputListener, Runnable {
+
+	/**
+	 * How strongly the estimated phase follows each pulse (0 to 1)
+	 */
+	static final double PHASE_GAIN = 0.1;
+
+	/**
+	 * How strongly the estimated period follows each pulse (0 to 1)
+	 */
+	static final double PERIOD_GAIN = 0.005;
 
 	/**
 	 * The MIDI input on which we'll listen for MIDI timecode.
@@ -24,6 +42,55 @@ public class InkClockExternalMidi extends InkClockExternal implements MidiInputL
 	 * Numbers of pulses (ticks) per quarter note (PPQN).
 	 */
 	private int ppqn = 24;
+
+	/**
+	 * Number of ticks raised per incoming pulse when smoothing, or 0 if
+	 * ticks are raised as pulses arrive
+	 */
+	private int multiplier = 0;
+
+	/**
+	 * Index of the last incoming pulse since the sequencer started, or -1 if
+	 * no pulse has arrived since it started or continued
+	 */
+	private long inPulse = -1;
+
+	/**
+	 * Estimated time of the last incoming pulse in System.nanoTime() units
+	 */
+	private long phaseNanos;
+
+	/**
+	 * Estimated time between incoming pulses in nanoseconds, or 0 if unknown
+	 */
+	private double periodNanos = 0;
+
+	/**
+	 * Arrival times of the last few incoming pulses (indexed by pulse count
+	 * modulo its length), used to estimate the period from scratch
+	 */
+	private final long[] arrivals = new long[8];
+
+	/**
+	 * Pulse indexes matching arrivals
+	 */
+	private final long[] arrivalPulses = new long[8];
+
+	/**
+	 * Number of pulses tracked since the sequencer started or continued
+	 */
+	private int arrivalCount = 0;
+
+	/**
+	 * Number of consecutive pulses that disagreed with the estimates
+	 */
+	private int outliers = 0;
+
+	/**
+	 * Incremented on start, stop and continue so the generator thread can
+	 * tell that a tick it was waiting for is no longer wanted
+	 */
+	private long generation = 0;
 	
 	/**
 	 * Sets up an external MIDI clock.
@@ -38,6 +105,42 @@ public class InkClockExternalMidi extends InkClockExternal implements MidiInputL
 		this.ppqn = ppqn;
 	}
 
+	/**
+	 * Raises ticks at smoothed times rather than as pulses arrive. Must be
+	 * called before the input starts sending.
+	 * @param multiplier number of ticks per incoming pulse (e.g., 4 to derive
+	 * 					 96 PPQN from 24 PPQN)
+	 */
+	public void setSmoothing(int multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("Smoothing multiplier must be at least 1");
+		}
+		if (this.multiplier > 0) {
+			throw new IllegalStateException("Smoothing is already enabled");
+		}
+		this.multiplier = multiplier;
+		Thread thread = new Thread(this, "inkfish-clock-pll");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Returns true if ticks are raised at smoothed times, which is required
+	 * for a groove to take effect
+	 */
+	public boolean isSmoothing() {
+		return multiplier > 0;
+	}
+
+	/**
+	 * Returns the estimated tempo in beats (quarter notes) per minute, or 0
+	 * if it is not known yet
+	 */
+	public synchronized double getTempo() {
+		return periodNanos > 0 ? 60000000000.0 / (periodNanos * ppqn) : 0;
+	}
+
 	/**
 	 * Called when the MIDI input sends a MIDI message
 	 */
@@ -48,18 +151,27 @@ public class InkClockExternalMidi extends InkClockExternal implements MidiInputL
 
 		switch (stat) {
 			case ShortMessage.START:
-				isRunning = true;
-				tick = 0;
-				pulse = 0;
+				synchronized (this) {
+					isRunning = true;
+					tick = 0;
+					pulse = 0;
+					inPulse = -1;
+					generation++;
+					notifyAll();
+				}
 				raiseOnStart(tick);
 				raiseOnQuarterNote(tick);
 				break;
 			case ShortMessage.STOP:
-				isRunning = false;
-				raiseOnStop(tick);
+				onExternalStop();
 				break;
 			case ShortMessage.TIMING_CLOCK:
 				if (!isRunning) break;
+				long now = System.nanoTime();
+				trackPulse(now);
+				if (multiplier > 0) break;
+				tickNanos = now;
+				recordTick(now);
 				raiseOnTick(tick);
 				pulse++;
 				if (pulse == ppqn) {
@@ -69,17 +181,144 @@ public class InkClockExternalMidi extends InkClockExternal implements MidiInputL
 				tick++;
 				break;
 			case ShortMessage.CONTINUE:
-				isRunning = true;
+				synchronized (this) {
+					isRunning = true;
+					inPulse = -1;
+					generation++;
+					notifyAll();
+				}
 				raiseOnContinue(tick);
 				break;
 			case ShortMessage.CONTROL_CHANGE:
 				if ((int)mbytes[1] == 0x7B) {
 					// @todo is this a MIDI standard?
 					// 0x7B is "All notes off"
-					isRunning = false;
-					raiseOnStop(tick);
+					onExternalStop();
 				}
 				break;
 		}
 	}
+
+	/**
+	 * Invoked on the generator thread when smoothing. Raises each tick at the
+	 * time estimated from the incoming pulses, shifted by the groove.
+	 */
+	public void run() {
+		int outPpqn = ppqn * multiplier;
+		while (true) {
+			long k;
+			long due;
+			long gen;
+			synchronized (this) {
+				try {
+					while (!isRunning || inPulse < 0 || tick > maxTick()) {
+						wait();
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				k = tick;
+				gen = generation;
+				if (periodNanos > 0) {
+					double tickPeriod = periodNanos / multiplier;
+					due = phaseNanos + (long)((k - inPulse * multiplier) * tickPeriod);
+					InkGroove currentGroove = groove;
+					if (currentGroove != null) {
+						due += (long)(currentGroove.getOffset(k) * tickPeriod);
+					}
+				}
+				else {
+					due = phaseNanos;
+				}
+			}
+			NanoTimer.sleepUntil(due);
+			synchronized (this) {
+				if (gen != generation || tick != k || !isRunning) {
+					continue;
+				}
+				tickNanos = due;
+			}
+			recordTick(due);
+			raiseOnTick(k);
+			if ((k + 1) % outPpqn == 0) {
+				raiseOnQuarterNote(k);
+			}
+			synchronized (this) {
+				if (gen == generation && tick == k) {
+					tick = k + 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the phase and period estimates with a pulse that arrived at a
+	 * given time. Pulses lost in between are accounted for by rounding the
+	 * elapsed time to whole periods. Pulses far off the estimate (such as
+	 * several delivered at once) only nudge it, but if they keep disagreeing
+	 * the period is estimated again from the last few pulses.
+	 */
+	private synchronized void trackPulse(long now) {
+		int window = arrivals.length;
+		if (inPulse < 0) {
+			// First pulse after start or continue
+			int perPulse = Math.max(multiplier, 1);
+			inPulse = (tick + perPulse - 1) / perPulse;
+			phaseNanos = now;
+			arrivalCount = 0;
+			outliers = 0;
+		}
+		else if (periodNanos <= 0 || outliers >= 4) {
+			// Estimate the period from scratch once there are enough pulses
+			inPulse++;
+			phaseNanos = now;
+			if (arrivalCount >= 4) {
+				int oldest = arrivalCount < window ? 0 : arrivalCount % window;
+				periodNanos = (double)(now - arrivals[oldest]) / (inPulse - arrivalPulses[oldest]);
+				outliers = 0;
+			}
+		}
+		else {
+			long elapsed = now - phaseNanos;
+			long n = Math.max(Math.round(elapsed / periodNanos), 1);
+			double error = now - (phaseNanos + n * periodNanos);
+			if (n > 1 || Math.abs(error) > periodNanos / 4) {
+				outliers++;
+				error = Math.max(Math.min(error, periodNanos / 4), -periodNanos / 4);
+			}
+			else {
+				outliers = 0;
+			}
+			phaseNanos += (long)(n * periodNanos + PHASE_GAIN * error);
+			periodNanos += PERIOD_GAIN * error / n;
+			inPulse += n;
+		}
+		arrivals[arrivalCount % window] = now;
+		arrivalPulses[arrivalCount % window] = inPulse;
+		arrivalCount++;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the last tick the generator may raise before more pulses arrive
+	 */
+	private long maxTick() {
+		if (periodNanos <= 0) {
+			return inPulse * multiplier;
+		}
+		return (inPulse + ppqn) * multiplier;
+	}
+
+	/**
+	 * Stops the sequencer on request of the external sequencer
+	 */
+	private void onExternalStop() {
+		synchronized (this) {
+			isRunning = false;
+			generation++;
+			notifyAll();
+		}
+		raiseOnStop(tick);
+	}
 }
@@ -13,4 +13,45 @@ abstract public class InkClockInternal extends InkClock {
 		return true;
 	}
 	
+	/**
+	 * Sets the tempo. If the sequencer is running, the change takes effect on
+	 * the next tick.
+	 * @param bpm tempo in beats (quarter notes) per minute
+	 */
+	public void setTempo(double bpm) {
+		rampTempo(bpm, 0, false);
+	}
+	
+	/**
+	 * Sets the tempo from the delay between each tick
+	 * @param milliDelay delay in milliseconds
+	 */
+	public void setDelay(long milliDelay) {
+		if (milliDelay <= 0) {
+			throw new IllegalArgumentException("Delay must be positive");
+		}
+		setTempo(60000.0 / (milliDelay * getPpqn()));
+	}
+	
+	/**
+	 * Gradually changes the tempo over a number of ticks. If the sequencer is
+	 * running, the ramp starts on the next tick and replaces any ramp in
+	 * progress. Otherwise the target tempo is set immediately.
+	 * @param bpm			target tempo in beats (quarter notes) per minute
+	 * @param ticks			number of ticks over which to reach the target
+	 * @param exponential	whether to change tempo by a constant ratio per
+	 * 						tick rather than by a constant amount
+	 */
+	abstract public void rampTempo(double bpm, int ticks, boolean exponential);
+	
+	/**
+	 * Returns the tempo in beats (quarter notes) per minute
+	 */
+	abstract public double getTempo();
+	
+	/**
+	 * Returns the number of ticks per quarter note
+	 */
+	abstract public int getPpqn();
+	
 }
@@ -1,62 +1,100 @@
 package cc.atoi.inkfish;
 
-import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An internal thread-based sequencer. This class generates sequencer ticks
- * on a regular interval using a ScheduledExecutorService.
+ * on a dedicated thread. Every pulse is scheduled against an absolute
+ * System.nanoTime() deadline computed from the tempo, so tempo is not
+ * quantized to whole milliseconds and timing error does not accumulate.
+ * A groove template, if set, shifts each deadline by its offset.
  * @author Adam Saponara
  */
 public class InkClockInternalThread extends InkClockInternal implements Runnable {
-	
+
 	/**
-	 * The scheduler used to generate ticks on a regular interval
+	 * Thread generating ticks. Null when the sequencer is stopped.
 	 */
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-	
+	private volatile Thread thread = null;
+
 	/**
-	 * Latest ticket that was returned from scheduler
+	 * Tempo in beats (quarter notes) per minute
 	 */
-	private ScheduledFuture ticket = null;
-	
+	private volatile double tempo;
+
 	/**
-	 * Stores the value of the delay to set on the next tick
+	 * Stores the tempo change to start on the next tick, if any
 	 */
-	private Long nextMilliDelay = null;
-	
+	private final AtomicReference<TempoChange> nextTempoChange = new AtomicReference<TempoChange>();
+
 	/**
-	 * Delay between each tick in milliseconds
+	 * Tempo at the start of the ramp in progress
 	 */
-	private long milliDelay;
-	
+	private double rampFrom;
+
 	/**
-	 * Number of ticks per quarter note
+	 * Tempo at the end of the ramp in progress
 	 */
-	private int ppqn;
-	
+	private double rampTo;
+
+	/**
+	 * Length in ticks of the ramp in progress, or 0 if there is none
+	 */
+	private int rampLength = 0;
+
+	/**
+	 * Number of ticks of the ramp in progress that have elapsed
+	 */
+	private int rampStep = 0;
+
+	/**
+	 * Whether the ramp in progress is exponential rather than linear
+	 */
+	private boolean rampExponential = false;
+
+	/**
+	 * Length of a single pulse in nanoseconds at the current tempo
+	 */
+	private double pulseNanos;
+
+	/**
+	 * Tick value at which the current tempo took effect
+	 */
+	private long anchorTick;
+
+	/**
+	 * Deadline of anchorTick in System.nanoTime() units. Every later deadline
+	 * is computed from this value rather than by adding up pulse lengths.
+	 */
+	private long anchorNanos;
+
 	/**
-	 * Incrementing tick value
+	 * Number of ticks per quarter note
 	 */
-	private long tick = 0;
-	
+	private int ppqn;
+
 	/**
 	 * Increments once per tick within a single quarter note
 	 */
 	private int pulse = 0;
-	
+
+	/**
+	 * How long before its deadline each tick is raised in nanoseconds
+	 */
+	private volatile long lookaheadNanos = 0;
+
 	/**
 	 * Whether or not the sequencer is paused
 	 */
-	private boolean isPaused = false;
-	
+	private volatile boolean isPaused = false;
+
 	/**
 	 * Whether or not the sequencer is stopped
 	 */
-	private boolean isStopped = true;
+	private volatile boolean isStopped = true;
 
 	/**
 	 * Sets up an internal sequencer with PPQN = 24
-	 * @param listener		device that listens for sequencer events
 	 * @param milliDelay	number of milliseconds between each tick
 	 */
 	public InkClockInternalThread(long milliDelay) {
@@ -64,68 +102,169 @@ public class InkClockInternalThread extends InkClockInternal implements Runnable
 	}
 
 	/**
-	 * Sets up an internal sequencer 
-	 * @param listener		device that listens for sequencer events
+	 * Sets up an internal sequencer
 	 * @param milliDelay	number of milliseconds between each tick
 	 * @param ppqn			number of ticks per quarter note
 	 */
 	public InkClockInternalThread(long milliDelay, int ppqn) {
 		this.ppqn = ppqn;
-		this.milliDelay = milliDelay;
+		applyTempo(delayToTempo(milliDelay));
 	}
 
 	/**
-	 * Invoked whenever the thread runs (each tick)
+	 * Invoked on the clock thread. Waits for each tick deadline and raises
+	 * events until the sequencer is stopped.
 	 */
 	public void run() {
-		
-		// Skip if paused
-		if (isPaused) return;
-		
-		// onTick event
-		raiseOnTick(tick);
-		
-		// onQuarterNote event if applicable
-		pulse++;
-		if (pulse == ppqn) {
-			pulse = 0;
-			raiseOnQuarterNote(tick);
-		}
-		
-		// Change delay if needed
-		if (nextMilliDelay != null) {
-			long newDelay = nextMilliDelay.longValue();
-			if (ticket != null) {
-				ticket.cancel(true);
+
+		Thread self = Thread.currentThread();
+		anchorTick = tick;
+		anchorNanos = System.nanoTime();
+
+		while (thread == self) {
+
+			// Wait for the deadline of the current tick shifted by the groove,
+			// less the lookahead
+			long evenDeadline = anchorNanos + (long)((tick - anchorTick) * pulseNanos);
+			InkGroove currentGroove = groove;
+			long deadline = currentGroove == null
+				? evenDeadline
+				: evenDeadline + (long)(currentGroove.getOffset(tick) * pulseNanos);
+			NanoTimer.sleepUntil(deadline - lookaheadNanos);
+			if (thread != self) {
+				break;
+			}
+
+			// Hold while paused, then restart timing from the current tick
+			if (isPaused) {
+				synchronized (this) {
+					while (isPaused && thread == self) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				anchorTick = tick;
+				anchorNanos = System.nanoTime();
+				continue;
+			}
+
+			// onTick event
+			tickNanos = deadline;
+			recordTick(deadline - lookaheadNanos);
+			raiseOnTick(tick);
+
+			// onQuarterNote event if applicable
+			pulse++;
+			if (pulse == ppqn) {
+				pulse = 0;
+				raiseOnQuarterNote(tick);
+			}
+
+			// Start a new tempo change if one was requested
+			TempoChange change = nextTempoChange.getAndSet(null);
+			if (change != null) {
+				rampFrom = tempo;
+				rampTo = change.bpm;
+				rampLength = Math.max(change.ticks, 1);
+				rampStep = 0;
+				rampExponential = change.exponential;
 			}
-			ticket = scheduler.scheduleAtFixedRate(this, newDelay, newDelay, TimeUnit.MILLISECONDS);
-			this.milliDelay = newDelay;
-			nextMilliDelay = null;
+
+			// Advance the ramp in progress. The new pulse length applies from
+			// this tick's deadline onward, so no tick is skipped or repeated.
+			if (rampLength > 0) {
+				rampStep++;
+				double f = (double)rampStep / rampLength;
+				double bpm = rampExponential
+					? rampFrom * Math.pow(rampTo / rampFrom, f)
+					: rampFrom + (rampTo - rampFrom) * f;
+				if (rampStep == rampLength) {
+					bpm = rampTo;
+					rampLength = 0;
+				}
+				anchorTick = tick;
+				anchorNanos = evenDeadline;
+				applyTempo(bpm);
+			}
+
+			// Increment tick
+			tick++;
 		}
-		
-		// Increment tick
-		tick++;
 	}
-	
+
 	/**
-	 * Sets the delay between each tick
-	 * @param milliDelay delay in milliseconds
+	 * Gradually changes the tempo over a number of ticks (see
+	 * InkClockInternal.rampTempo)
+	 */
+	public void rampTempo(double bpm, int ticks, boolean exponential) {
+		if (bpm <= 0) {
+			throw new IllegalArgumentException("Tempo must be positive");
+		}
+		if (thread == null) {
+			nextTempoChange.set(null);
+			applyTempo(bpm);
+		}
+		else {
+			nextTempoChange.set(new TempoChange(bpm, ticks, exponential));
+		}
+	}
+
+	/**
+	 * Returns the tempo in beats (quarter notes) per minute
+	 */
+	public double getTempo() {
+		return tempo;
+	}
+
+	/**
+	 * Returns the number of ticks per quarter note
+	 */
+	public int getPpqn() {
+		return ppqn;
+	}
+
+	/**
+	 * Sets how long before its deadline each tick is raised, giving listeners
+	 * time to prepare messages that are due at getTickNanos()
+	 * @param lookaheadMicros lookahead in microseconds
+	 */
+	public void setLookahead(long lookaheadMicros) {
+		if (lookaheadMicros < 0) {
+			throw new IllegalArgumentException("Lookahead must not be negative");
+		}
+		lookaheadNanos = lookaheadMicros * 1000;
+	}
+
+	/**
+	 * Returns the lookahead in microseconds
 	 */
-	public void setDelay(long milliDelay) {
-		nextMilliDelay = new Long(milliDelay);
+	public long getLookahead() {
+		return lookaheadNanos / 1000;
 	}
 
 	/**
-	 * Starts or unpauses the sequencer 
+	 * Starts or unpauses the sequencer
 	 */
 	public void play() {
 		if (isStopped) {
 			isStopped = false;
-			ticket = scheduler.scheduleAtFixedRate(this, 0, this.milliDelay, TimeUnit.MILLISECONDS);
+			isPaused = false;
+			isRunning = true;
+			thread = new Thread(this, "inkfish-clock");
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
 			raiseOnStart(tick);
 		}
 		else if (isPaused) {
-			isPaused = false;
+			synchronized (this) {
+				isPaused = false;
+				notifyAll();
+			}
+			isRunning = true;
 			raiseOnContinue(tick);
 		}
 	}
@@ -134,8 +273,26 @@ public class InkClockInternalThread extends InkClockInternal implements Runnable
 	 * Stops the sequencer
 	 */
 	public void stop() {
-		ticket.cancel(true);
+		Thread old;
+		synchronized (this) {
+			old = thread;
+			thread = null;
+			notifyAll();
+		}
+
+		// Wait for the old tick loop to finish so a quick play() cannot run
+		// two at once (unless stopped from a listener on the clock thread)
+		if (old != null && old != Thread.currentThread()) {
+			old.interrupt();
+			try {
+				old.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		isStopped = true;
+		isRunning = false;
 		raiseOnStop(tick);
 	}
 
@@ -144,7 +301,46 @@ public class InkClockInternalThread extends InkClockInternal implements Runnable
 	 */
 	public void pause() {
 		isPaused = true;
+		isRunning = false;
 		raiseOnStop(tick);
 	}
 
+	/**
+	 * Sets tempo and pulse length. Only called while the clock thread is not
+	 * running or from the clock thread itself.
+	 * @param bpm tempo in beats (quarter notes) per minute
+	 */
+	private void applyTempo(double bpm) {
+		tempo = bpm;
+		pulseNanos = 60000000000.0 / (bpm * ppqn);
+	}
+
+	/**
+	 * Converts a delay between ticks to a tempo at the current PPQN
+	 * @param milliDelay delay in milliseconds
+	 */
+	private double delayToTempo(long milliDelay) {
+		if (milliDelay <= 0) {
+			throw new IllegalArgumentException("Delay must be positive");
+		}
+		return 60000.0 / (milliDelay * ppqn);
+	}
+
+}
+
+/**
+ * Simple struct of a requested tempo change
+ */
+class TempoChange {
+
+	final double bpm;
+	final int ticks;
+	final boolean exponential;
+
+	TempoChange(double bpm, int ticks, boolean exponential) {
+		this.bpm = bpm;
+		this.ticks = ticks;
+		this.exponential = exponential;
+	}
+
 }
@@ -1,5 +1,6 @@
 package cc.atoi.inkfish;
 
+import java.util.Map;
 import org.mozilla.javascript.*;
 
 public class InkClockInternalThreadObject extends ScriptableObject implements Scriptable {
@@ -10,9 +11,14 @@ public class InkClockInternalThreadObject extends ScriptableObject implements Sc
 	private static final long serialVersionUID = 6191299674199520639L;
 	
 	/**
-	 * Internal sequencer
+	 * Internal or offline sequencer
 	 */
-	private InkClockInternalThread clock = null;
+	private InkClockInternal clock = null;
+	
+	/**
+	 * MIDI outputs by alias, for timing statistics
+	 */
+	private Map<String, MidiOutput> outputs = null;
 	
 	public InkClockInternalThreadObject() { }
 
@@ -21,16 +27,70 @@ public class InkClockInternalThreadObject extends ScriptableObject implements Sc
 	public void jsConstructor() { }
 
 	/**
-	 * Set internal sequencer
-	 * @param clock internal sequencer
+	 * Set internal or offline sequencer
+	 * @param clock internal or offline sequencer
+	 */
+	public void setClock(InkClockInternal clock) { this.clock = clock; }
+	
+	/**
+	 * Set MIDI outputs by alias, for timing statistics
+	 * @param outputs MIDI outputs
 	 */
-	public void setClock(InkClockInternalThread clock) { this.clock = clock; }
+	public void setOutputs(Map<String, MidiOutput> outputs) { this.outputs = outputs; }
 	
 	/**
 	 * Set clock delay on sequencer
 	 * @param delay
 	 */
 	public void jsFunction_setDelay(int delay) { clock.setDelay((long)delay); }
+
+	/**
+	 * Set tempo on sequencer
+	 * @param bpm beats per minute
+	 */
+	public void jsFunction_setTempo(double bpm) { clock.setTempo(bpm); }
+
+	/**
+	 * Gradually change tempo on sequencer
+	 * @param bpm			target beats per minute
+	 * @param ticks			number of ticks over which to reach the target
+	 * @param exponential	true for an exponential rather than linear ramp
+	 */
+	public void jsFunction_rampTempo(double bpm, int ticks, boolean exponential) { clock.rampTempo(bpm, ticks, exponential); }
+
+	/**
+	 * Returns the tempo of the sequencer in beats per minute
+	 */
+	public double jsFunction_getTempo() { return clock.getTempo(); }
+	
+	/**
+	 * Swing every other step
+	 * @param percent	position of the delayed step within each pair of steps
+	 * 					(50 to 75)
+	 * @param stepTicks	length of a step in ticks, or 0 for 16th notes
+	 */
+	public void jsFunction_swing(double percent, int stepTicks) {
+		clock.setGroove(InkGroove.swing(percent, stepTicks > 0 ? stepTicks : Math.max(clock.getPpqn() / 4, 1)));
+	}
+
+	/**
+	 * Set groove template on sequencer
+	 * @param offsets	array of step offsets in percent of a step (-50 to
+	 * 					50), or null for even ticks
+	 * @param stepTicks	length of a step in ticks, or 0 for 16th notes
+	 */
+	public void jsFunction_groove(Object offsets, int stepTicks) {
+		if (!(offsets instanceof Scriptable)) {
+			clock.setGroove(null);
+			return;
+		}
+		Scriptable array = (Scriptable)offsets;
+		double[] values = new double[(int)Context.toNumber(ScriptableObject.getProperty(array, "length"))];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Context.toNumber(ScriptableObject.getProperty(array, i));
+		}
+		clock.setGroove(new InkGroove(values, stepTicks > 0 ? stepTicks : Math.max(clock.getPpqn() / 4, 1)));
+	}
 	
 	/**
 	 * Starts the sequencer
@@ -47,4 +107,62 @@ public class InkClockInternalThreadObject extends ScriptableObject implements Sc
 	 */
 	public void jsFunction_pause() { clock.pause(); }
 	
+	/**
+	 * Returns timing statistics measured with --stats, or null if not
+	 * measured: { ticks: {...}, outputs: { alias: {...} } }, each with
+	 * count, p50, p99, p999 and max lateness in milliseconds
+	 */
+	public Object jsFunction_stats() {
+		LatencyHistogram ticks = clock.getStats();
+		if (ticks == null) {
+			return null;
+		}
+		Context cx = Context.getCurrentContext();
+		Scriptable scope = ScriptableObject.getTopLevelScope(this);
+		Scriptable stats = cx.newObject(scope);
+		stats.put("ticks", stats, toJs(cx, scope, ticks));
+		Scriptable outs = cx.newObject(scope);
+		if (outputs != null) {
+			for (Map.Entry<String, MidiOutput> entry : outputs.entrySet()) {
+				LatencyHistogram h = entry.getValue().getStats();
+				if (h != null) {
+					outs.put(entry.getKey(), outs, toJs(cx, scope, h));
+				}
+			}
+		}
+		stats.put("outputs", stats, outs);
+		return stats;
+	}
+	
+	/**
+	 * Forgets timing statistics measured so far
+	 */
+	public void jsFunction_resetStats() {
+		LatencyHistogram ticks = clock.getStats();
+		if (ticks != null) {
+			ticks.reset();
+		}
+		if (outputs != null) {
+			for (MidiOutput output : outputs.values()) {
+				LatencyHistogram h = output.getStats();
+				if (h != null) {
+					h.reset();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Makes a JavaScript object of the percentiles of a histogram
+	 */
+	private static Scriptable toJs(Context cx, Scriptable scope, LatencyHistogram h) {
+		Scriptable obj = cx.newObject(scope);
+		obj.put("count", obj, (double)h.getCount());
+		obj.put("p50", obj, h.getValueAtPercentile(50) / 1e6);
+		obj.put("p99", obj, h.getValueAtPercentile(99) / 1e6);
+		obj.put("p999", obj, h.getValueAtPercentile(99.9) / 1e6);
+		obj.put("max", obj, h.getMax() / 1e6);
+		return obj;
+	}
+	
 }
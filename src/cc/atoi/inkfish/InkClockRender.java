@@ -0,0 +1,283 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sound.midi.*;
+
+/**
+ * An offline sequencer that raises ticks as fast as possible rather than in
+ * real time, for rendering to a file. After each tick it waits for the
+ * script loop to handle every event posted for that tick, so script output
+ * lands on the same tick it would in real time. Scripts only run once every
+ * tick listener has finished, so events on the same tick are always recorded
+ * in the same order.
+ * 
+ * Tempo changes, ramps and the groove template are written to a conductor
+ * track as tempo meta events: a groove stretches or shrinks each tick
+ * instead of moving it, which plays back with the same timing.
+ */
+public class InkClockRender extends InkClockInternal implements Runnable {
+
+	/**
+	 * Number of ticks per quarter note
+	 */
+	private int ppqn;
+
+	/**
+	 * Tempo in beats (quarter notes) per minute
+	 */
+	private volatile double tempo;
+
+	/**
+	 * Stores the tempo change to start on the next tick, if any
+	 */
+	private final AtomicReference<TempoChange> nextTempoChange = new AtomicReference<TempoChange>();
+
+	/**
+	 * Tempo at the start of the ramp in progress
+	 */
+	private double rampFrom;
+
+	/**
+	 * Tempo at the end of the ramp in progress
+	 */
+	private double rampTo;
+
+	/**
+	 * Length in ticks of the ramp in progress, or 0 if there is none
+	 */
+	private int rampLength = 0;
+
+	/**
+	 * Number of ticks of the ramp in progress that have elapsed
+	 */
+	private int rampStep = 0;
+
+	/**
+	 * Whether the ramp in progress is exponential rather than linear
+	 */
+	private boolean rampExponential = false;
+
+	/**
+	 * Track recording tempo meta events, or null
+	 */
+	private Track conductor;
+
+	/**
+	 * Microseconds per quarter note of the last tempo meta event, or -1
+	 */
+	private int lastMicros = -1;
+
+	/**
+	 * Number of ticks to render
+	 */
+	private long length;
+
+	/**
+	 * Thread rendering ticks. Null when the sequencer is stopped.
+	 */
+	private volatile Thread thread = null;
+
+	/**
+	 * Thread started by the last play(), kept after stopping for join()
+	 */
+	private volatile Thread lastThread = null;
+
+	/**
+	 * Sets up an offline sequencer that does not record tempo meta events
+	 * @param ppqn		number of ticks per quarter note
+	 * @param tempo		initial tempo in beats (quarter notes) per minute
+	 * @param length	number of ticks to render
+	 */
+	public InkClockRender(int ppqn, double tempo, long length) {
+		this(ppqn, tempo, length, null);
+	}
+
+	/**
+	 * Sets up an offline sequencer
+	 * @param ppqn		number of ticks per quarter note
+	 * @param tempo		initial tempo in beats (quarter notes) per minute
+	 * @param length	number of ticks to render
+	 * @param conductor	track to record tempo meta events into, or null
+	 */
+	public InkClockRender(int ppqn, double tempo, long length, Track conductor) {
+		if (tempo <= 0) {
+			throw new IllegalArgumentException("Tempo must be positive");
+		}
+		this.ppqn = ppqn;
+		this.tempo = tempo;
+		this.length = length;
+		this.conductor = conductor;
+	}
+
+	/**
+	 * Invoked on the render thread. Raises every tick, then stops.
+	 */
+	public void run() {
+		Thread self = Thread.currentThread();
+		ScriptLoop scriptLoop = ScriptLoop.getInstance();
+		int pulse = 0;
+		while (thread == self && tick < length) {
+			advanceTempo();
+			tickNanos = System.nanoTime();
+			scriptLoop.hold();
+			raiseOnTick(tick);
+			pulse++;
+			if (pulse == ppqn) {
+				pulse = 0;
+				raiseOnQuarterNote(tick);
+			}
+			scriptLoop.release();
+			scriptLoop.awaitIdle();
+			tick++;
+		}
+		if (thread == self) {
+			thread = null;
+			isRunning = false;
+			raiseOnStop(tick);
+		}
+	}
+
+	/**
+	 * Starts a requested tempo change, advances the ramp in progress and
+	 * records a tempo meta event on the current tick if the length of this
+	 * tick (stretched by the groove, if any) differs from the last one
+	 */
+	private void advanceTempo() {
+		TempoChange change = nextTempoChange.getAndSet(null);
+		if (change != null) {
+			rampFrom = tempo;
+			rampTo = change.bpm;
+			rampLength = Math.max(change.ticks, 1);
+			rampStep = 0;
+			rampExponential = change.exponential;
+		}
+		if (rampLength > 0) {
+			rampStep++;
+			double f = (double)rampStep / rampLength;
+			double bpm = rampExponential
+				? rampFrom * Math.pow(rampTo / rampFrom, f)
+				: rampFrom + (rampTo - rampFrom) * f;
+			if (rampStep == rampLength) {
+				bpm = rampTo;
+				rampLength = 0;
+			}
+			tempo = bpm;
+		}
+
+		// A tick moved by the groove lasts as long as the gap to the next one
+		double stretch = 1;
+		InkGroove currentGroove = groove;
+		if (currentGroove != null) {
+			stretch += currentGroove.getOffset(tick + 1) - currentGroove.getOffset(tick);
+		}
+		int micros = (int)Math.max(Math.min(Math.round(60000000.0 / tempo * stretch), 0xFFFFFF), 1);
+		if (micros != lastMicros && conductor != null) {
+			lastMicros = micros;
+			try {
+				MetaMessage meta = new MetaMessage();
+				meta.setMessage(0x51, new byte[] {
+					(byte)(micros >> 16),
+					(byte)(micros >> 8),
+					(byte)micros
+				}, 3);
+				conductor.add(new MidiEvent(meta, tick));
+			}
+			catch (InvalidMidiDataException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gradually changes the tempo over a number of ticks (see
+	 * InkClockInternal.rampTempo)
+	 */
+	public void rampTempo(double bpm, int ticks, boolean exponential) {
+		if (bpm <= 0) {
+			throw new IllegalArgumentException("Tempo must be positive");
+		}
+		if (thread == null) {
+			nextTempoChange.set(null);
+			rampLength = 0;
+			tempo = bpm;
+		}
+		else {
+			nextTempoChange.set(new TempoChange(bpm, ticks, exponential));
+		}
+	}
+
+	/**
+	 * Starts rendering
+	 */
+	public void play() {
+		if (thread != null) {
+			return;
+		}
+		isRunning = true;
+		thread = new Thread(this, "inkfish-render");
+		lastThread = thread;
+		raiseOnStart(tick);
+		thread.start();
+	}
+
+	/**
+	 * Waits until the render thread has finished, including raising onStop
+	 * at the end of the rendered length
+	 */
+	public void join() throws InterruptedException {
+		Thread t = lastThread;
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Stops rendering
+	 */
+	public void stop() {
+		if (thread == null) {
+			return;
+		}
+		thread = null;
+		isRunning = false;
+		raiseOnStop(tick);
+	}
+
+	/**
+	 * Pauses rendering (same as stop)
+	 */
+	public void pause() {
+		stop();
+	}
+
+	/**
+	 * Returns the number of ticks per quarter note
+	 */
+	public int getPpqn() {
+		return ppqn;
+	}
+
+	/**
+	 * Returns the tempo in beats (quarter notes) per minute
+	 */
+	public double getTempo() {
+		return tempo;
+	}
+
+	/**
+	 * Returns the number of ticks to render
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Converts a delay in microseconds to a whole number of ticks at the
+	 * current tempo
+	 * @param micros delay in microseconds
+	 */
+	public long microsToTicks(long micros) {
+		return Math.round(micros * tempo * ppqn / 60000000.0);
+	}
+
+}
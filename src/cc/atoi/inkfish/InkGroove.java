@@ -0,0 +1,133 @@
+package cc.atoi.inkfish;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * A groove template: timing offsets for each step of a repeating pattern of
+ * steps (for example the 16th notes of a bar). Pulses between two steps are
+ * shifted by interpolating between the offsets of those steps, so time is
+ * warped smoothly and pulses never change order.
+ *
+ * Offsets are given in percent of a step, from -50 (half a step early) to
+ * 50 (half a step late). A groove table file lists one offset per step,
+ * separated by whitespace or commas; everything after a # is ignored.
+ */
+public class InkGroove {
+
+	/**
+	 * Offset of each step as a fraction of a step
+	 */
+	private final double[] offsets;
+
+	/**
+	 * Length of a step in ticks
+	 */
+	private final int stepTicks;
+
+	/**
+	 * Sets up a groove template
+	 * @param offsets	offset of each step in percent of a step (-50 to 50)
+	 * @param stepTicks	length of a step in ticks
+	 */
+	public InkGroove(double[] offsets, int stepTicks) {
+		if (offsets.length == 0) {
+			throw new IllegalArgumentException("Groove must have at least one step");
+		}
+		if (stepTicks < 1) {
+			throw new IllegalArgumentException("Groove step must be at least 1 tick");
+		}
+		this.offsets = new double[offsets.length];
+		for (int i = 0; i < offsets.length; i++) {
+			if (!(offsets[i] >= -50 && offsets[i] <= 50)) {
+				throw new IllegalArgumentException("Invalid groove offset " + offsets[i] + "; expected -50 to 50");
+			}
+			this.offsets[i] = offsets[i] / 100;
+		}
+		this.stepTicks = stepTicks;
+	}
+
+	/**
+	 * Makes a swing groove, which delays every other step
+	 * @param percent	position of the delayed step within each pair of steps
+	 * 					in percent (50 is straight, 66 is a triplet feel, up
+	 * 					to 75)
+	 * @param stepTicks	length of a step in ticks
+	 */
+	public static InkGroove swing(double percent, int stepTicks) {
+		if (!(percent >= 50 && percent <= 75)) {
+			throw new IllegalArgumentException("Invalid swing " + percent + "; expected 50 to 75");
+		}
+		return new InkGroove(new double[] { 0, (percent - 50) * 2 }, stepTicks);
+	}
+
+	/**
+	 * Makes a groove from a groove table (see class documentation)
+	 * @param table		groove table
+	 * @param stepTicks	length of a step in ticks
+	 */
+	public static InkGroove parse(String table, int stepTicks) {
+		ArrayList<Double> values = new ArrayList<Double>();
+		for (String line : table.split("\n")) {
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			for (String value : line.trim().split("[\\s,]+")) {
+				if (value.length() > 0) {
+					values.add(Double.parseDouble(value));
+				}
+			}
+		}
+		double[] offsets = new double[values.size()];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = values.get(i);
+		}
+		return new InkGroove(offsets, stepTicks);
+	}
+
+	/**
+	 * Loads a groove table file (see class documentation)
+	 * @param file		groove table file
+	 * @param stepTicks	length of a step in ticks
+	 * @throws IOException
+	 */
+	public static InkGroove load(File file, int stepTicks) throws IOException {
+		byte[] buffer = new byte[(int)file.length()];
+		DataInputStream fin = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			fin.readFully(buffer);
+		}
+		finally {
+			fin.close();
+		}
+		return parse(new String(buffer), stepTicks);
+	}
+
+	/**
+	 * Returns how far a tick is shifted, in ticks
+	 * @param tick tick value
+	 */
+	public double getOffset(long tick) {
+		long step = tick / stepTicks;
+		int pos = (int)(tick % stepTicks);
+		double from = offsets[(int)(step % offsets.length)];
+		double to = offsets[(int)((step + 1) % offsets.length)];
+		return (from + (to - from) * pos / stepTicks) * stepTicks;
+	}
+
+	/**
+	 * Returns the number of steps before the groove repeats
+	 */
+	public int getSteps() {
+		return offsets.length;
+	}
+
+	/**
+	 * Returns the length of a step in ticks
+	 */
+	public int getStepTicks() {
+		return stepTicks;
+	}
+
+}
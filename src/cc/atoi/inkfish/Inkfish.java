@@ -6,15 +6,20 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.jar.JarFile;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Extensible JavaScriptable MIDI sequencer
  * @author Adam Saponara
  */
-public class Inkfish implements InkClockListener, MidiInputListener {
+public class Inkfish implements InkClockListener, MidiInputListener, ScriptLoopListener, ScriptWatcherListener {
 
 	/**
 	 * Number of ticks or pulses per quarter note.
@@ -56,9 +61,15 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 	protected int jsDivisor;
 	
 	/**
-	 * Runtime context of user JavaScript
+	 * Runtime context of user JavaScript while it is being set up. Callbacks
+	 * into user JavaScript run on the script loop's own context.
 	 */
 	protected Context jsContext;
+
+	/**
+	 * Loop that runs all callbacks into user JavaScript on a single thread
+	 */
+	protected ScriptLoop scriptLoop;
 	
 	/**
 	 * Top-level scope of user JavaScript
@@ -68,24 +79,94 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 	/**
 	 * Reference to "onmidiin" function in user JavaScript 
 	 */
-	protected Function jsMidiInFunc;
+	protected volatile Function jsMidiInFunc;
 
 	/**
 	 * Reference to "ontick" function in user JavaScript 
 	 */
-	protected Function jsTickFunc;
+	protected volatile Function jsTickFunc;
 	
 	/**
 	 * Array of all MIDI Output JavaScripts objects
 	 * @todo needed?
 	 */
 	protected MidiIoObject[] jsMidiOuts;
+
+	/**
+	 * The 'sched' JavaScript object
+	 */
+	protected TickSchedulerObject jsScheduler;
 	
 	/**
 	 * Directory to search for user JavaScript and other resources
 	 */
 	protected File trackDir;
 
+	/**
+	 * Compiles user JavaScript
+	 */
+	protected ScriptCompiler scriptCompiler;
+
+	/**
+	 * Recompiled user scripts waiting to be run at the next bar boundary,
+	 * keyed by file name. Guarded by its own monitor.
+	 */
+	protected LinkedHashMap<String, Script> pendingScripts = new LinkedHashMap<String, Script>();
+
+	/**
+	 * Whether pendingScripts is non-empty. Lets the clock thread check for
+	 * reloads without taking a lock.
+	 */
+	protected volatile boolean hasPendingScripts = false;
+
+	/**
+	 * Standard MIDI File sequence recording MIDI outputs when rendering
+	 * offline, otherwise null
+	 */
+	protected Sequence renderSequence;
+
+	/**
+	 * File to write renderSequence to
+	 */
+	protected File renderFile;
+
+	/**
+	 * Time rendering started in milliseconds
+	 */
+	protected long renderStarted;
+
+	/**
+	 * Whether timing statistics are printed at stop and exit
+	 */
+	protected boolean isPrintingStats = false;
+
+	/**
+	 * Number of ticks raised when timing statistics were last printed, or -1
+	 */
+	protected long statsPrintedAt = -1;
+
+	/**
+	 * Number and duration of calls into the 'ontick' function
+	 */
+	protected final CallTimer tickTimer = new CallTimer();
+
+	/**
+	 * Number and duration of calls into the 'onmidiin' function
+	 */
+	protected final CallTimer midiInTimer = new CallTimer();
+
+	/**
+	 * Boxed command values (status & 0xF0) by status >> 4. Values from 0x80
+	 * up are outside the Integer cache, so boxing them for each message would
+	 * allocate.
+	 */
+	private static final Integer[] COMMANDS = new Integer[16];
+	static {
+		for (int i = 0; i < COMMANDS.length; i++) {
+			COMMANDS[i] = Integer.valueOf(i << 4);
+		}
+	}
+
 	/**
 	 * Sole constructor. Sets up Inkfish environment according to params and
 	 * also starts the playback clock.
@@ -108,9 +189,36 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 		
 		// Set ppqn (default to 24)
 		this.ppqn = params.containsKey("ppqn") ? Integer.parseInt(params.get("ppqn").get(0)) : 24;
+		int ppqnIn = this.ppqn;
 		
 		// Set sequencer
-		if (params.containsKey("seq")) {
+		if (params.containsKey("render")) {
+			// Offline sequencer (render to a Standard MIDI File as fast as
+			// possible, default to 16 bars)
+			if (params.containsKey("seq")) {
+				throw new IllegalArgumentException("Invalid render parameter; rendering requires the internal sequencer");
+			}
+			double tempo = params.containsKey("tempo")
+				? Double.parseDouble(params.get("tempo").get(0))
+				: 60000.0 / ((params.containsKey("delay") ? Integer.parseInt(params.get("delay").get(0)) : 21) * ppqn);
+			long bars = params.containsKey("length") ? Long.parseLong(params.get("length").get(0)) : 16;
+			this.renderFile = new File(params.get("render").get(0));
+			try {
+				this.renderSequence = new Sequence(Sequence.PPQ, ppqn);
+			}
+			catch (InvalidMidiDataException e) {
+				throw new IllegalArgumentException("Unable to set up render sequence", e);
+			}
+			this.clock = new InkClockRender(ppqn, tempo, bars * ppqn * 4, this.renderSequence.createTrack());
+			this.clock.addListener(this);
+
+			// Play the same pattern steps on every render unless seeded
+			// otherwise
+			if (!params.containsKey("seed")) {
+				PatternObject.setSeed(0);
+			}
+		}
+		else if (params.containsKey("seq")) {
 			// External sequencer (sync to MIDI input)
 			String seqArg = params.get("seq").get(0);
 			MidiDevice device = seqArg.matches("^\\d+$")
@@ -121,7 +229,14 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 				System.exit(1);
 			}
 			else {
-				this.clock = new InkClockExternalMidi(new MidiInput(device), ppqn);
+				InkClockExternalMidi externalClock = new InkClockExternalMidi(new MidiInput(device), ppqn);
+				if (params.containsKey("smooth")) {
+					// Ticks are raised multiplier times per incoming pulse
+					int multiplier = Integer.parseInt(params.get("smooth").get(0));
+					externalClock.setSmoothing(multiplier);
+					this.ppqn *= multiplier;
+				}
+				this.clock = externalClock;
 				this.clock.addListener(this);
 				sequencer = new MidiInput(device);
 			}
@@ -129,12 +244,27 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 		}
 		else {
 			// Internal sequencer (default to 21 ms delay)
-			this.clock = new InkClockInternalThread(params.containsKey("delay") ? Integer.parseInt(params.get("delay").get(0)) : 21, ppqn);
+			InkClockInternalThread internalClock = new InkClockInternalThread(params.containsKey("delay") ? Integer.parseInt(params.get("delay").get(0)) : 21, ppqn);
+			if (params.containsKey("tempo")) {
+				internalClock.setTempo(Double.parseDouble(params.get("tempo").get(0)));
+			}
+			this.clock = internalClock;
 			this.clock.addListener(this);
 		}
 		
-		// Set jsDivisor (default to 6)
-		this.jsDivisor = params.containsKey("divisor") ? Integer.parseInt(params.get("divisor").get(0)) : 6;
+		// Seed the step probabilities of patterns
+		if (params.containsKey("seed")) {
+			PatternObject.setSeed(Long.parseLong(params.get("seed").get(0)));
+		}
+
+		// Set jsDivisor (default to 6 incoming pulses)
+		this.jsDivisor = params.containsKey("divisor") ? Integer.parseInt(params.get("divisor").get(0)) : 6 * this.ppqn / ppqnIn;
+
+		// Set script optimization level (default to 0) and cache directory
+		this.scriptCompiler = new ScriptCompiler(
+			params.containsKey("jsopt") ? Integer.parseInt(params.get("jsopt").get(0)) : 0,
+			new File(this.trackDir, ".inkfish-cache")
+		);
 
 		// Instantiate MIDI devices
 		this.midiIns = new HashMap<String, MidiInput>();
@@ -146,6 +276,58 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 			loadMidiIo(params.get("out"), this.midiOuts, false, midiLoader);
 		}
 
+		// Apply filters to midiIns
+		if (params.containsKey("filter")) {
+			for (String filterDef : params.get("filter")) {
+				String[] aliasSpec = filterDef.split(":", 2);
+				if (aliasSpec.length < 2 || !midiIns.containsKey(aliasSpec[0])) {
+					throw new IllegalArgumentException("Invalid filter parameter " + filterDef + "; expected format alias:spec with the alias of an input");
+				}
+				midiIns.get(aliasSpec[0]).setFilter(MidiInputFilter.parse(aliasSpec[1]));
+			}
+		}
+
+		// Apply swing or a groove table to the internal or offline sequencer
+		// or a smoothed external one (steps default to 16th notes)
+		if (params.containsKey("swing") || params.containsKey("groove")) {
+			boolean isSmoothed = this.clock instanceof InkClockExternalMidi && ((InkClockExternalMidi)this.clock).isSmoothing();
+			if (!(this.clock instanceof InkClockInternal) && !isSmoothed) {
+				throw new IllegalArgumentException("Invalid swing or groove parameter; grooves require the internal sequencer or --smooth");
+			}
+			boolean isSwing = params.containsKey("swing");
+			String[] valueStep = params.get(isSwing ? "swing" : "groove").get(0).split(":", 2);
+			int stepTicks = valueStep.length > 1 ? Integer.parseInt(valueStep[1]) : Math.max(ppqn / 4, 1);
+			this.clock.setGroove(isSwing
+				? InkGroove.swing(Double.parseDouble(valueStep[0]), stepTicks)
+				: InkGroove.load(new File(valueStep[0]), stepTicks)
+			);
+		}
+
+		// Send to midiOuts ahead of time with the internal sequencer
+		if (params.containsKey("lookahead")) {
+			if (!(this.clock instanceof InkClockInternalThread)) {
+				throw new IllegalArgumentException("Invalid lookahead parameter; lookahead requires the internal sequencer");
+			}
+			((InkClockInternalThread)this.clock).setLookahead((long)(Double.parseDouble(params.get("lookahead").get(0)) * 1000));
+			for (String name : midiOuts.keySet()) {
+				midiOuts.get(name).setLookahead(true);
+			}
+		}
+
+		// Measure timing of ticks and midiOuts, printing it at stop or exit
+		if (params.containsKey("stats")) {
+			this.clock.setStats(new LatencyHistogram());
+			for (String name : midiOuts.keySet()) {
+				midiOuts.get(name).setStats(new LatencyHistogram(), this.clock);
+			}
+			this.isPrintingStats = true;
+			Runtime.getRuntime().addShutdownHook(new Thread("inkfish-stats") {
+				public void run() {
+					printStats();
+				}
+			});
+		}
+
 		// Listen to midiIns
 		for (String name : midiIns.keySet()) {
 			MidiInput midiIn = midiIns.get(name);
@@ -155,6 +337,10 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 		// Set tick to 0
 		this.tick = 0;
 		
+		// Handle callbacks into JavaScript on the script loop
+		this.scriptLoop = ScriptLoop.getInstance();
+		this.scriptLoop.setListener(this);
+
 		// Setup JavaScript environment
 		try {
 
@@ -162,13 +348,15 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 			this.jsContext = Context.enter();
 			this.jsScope = this.jsContext.initStandardObjects();
 			ScriptableObject.defineClass(jsScope, MidiIoObject.class);
+			ScriptableObject.defineClass(jsScope, MidiEventObject.class);
+			ScriptableObject.defineClass(jsScope, PatternObject.class);
 
 			// Make MidiOut JavaScript objects
 			int iJsMidiOut = 0;
 			this.jsMidiOuts = new MidiIoObject[midiOuts.size()];
 			for (String name : midiOuts.keySet()) {
 				MidiIoObject jsMidiOut = (MidiIoObject)this.jsContext.newObject(jsScope, "MidiIoObject");
-				jsMidiOut.initialize(midiOuts.get(name), this.clock);
+				jsMidiOut.initialize(midiOuts.get(name), this.clock, this.ppqn);
 				jsScope.put(name, jsScope, jsMidiOut);
 				jsMidiOuts[iJsMidiOut++] = jsMidiOut;
 			}
@@ -178,14 +366,21 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 				MidiIoObject jsMidiIn = (MidiIoObject)this.jsContext.newObject(jsScope, "MidiIoObject");
 				jsMidiIn.initialize(midiIns.get(name), this.clock);
 				jsScope.put(name, jsScope, jsMidiIn);
+				MidiEventObject jsMidiEvent = (MidiEventObject)this.jsContext.newObject(jsScope, "MidiEventObject");
+				jsMidiEvent.setAlias(name);
+				midiIns.get(name).getScriptArgs()[6] = jsMidiEvent;
 			}
 
+			// Make 'sched' object for callbacks at musical rates
+			ScriptableObject.defineClass(jsScope, TickSchedulerObject.class);
+			this.jsScheduler = (TickSchedulerObject)this.jsContext.newObject(jsScope, "TickSchedulerObject");
+			jsScheduler.initialize(this.clock, this.ppqn, jsScope);
+			jsScope.put("sched", jsScope, jsScheduler);
+
 			// Make 'out' object for out.println
 			ScriptableObject.putProperty(jsScope, "out", Context.javaToJS(System.out, jsScope));
 			
-			// Parse trackDir/*.js as user scripts
-			BufferedInputStream fin;
-			byte[] buffer;
+			// Compile and run trackDir/*.js as user scripts
 			File[] scripts;
 			scripts = trackDir.listFiles(new FileFilter() {
 				public boolean accept(File file) {
@@ -193,34 +388,42 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 				}
 			});
 			for (int i = 0; i < scripts.length; i++) {
-				buffer = new byte[(int)scripts[i].length()];
-				fin = new BufferedInputStream(new FileInputStream(scripts[i]));
-				fin.read(buffer);
-				Object result = this.jsContext.evaluateString(jsScope, new String(buffer), scripts[i].getName(), 1, null);
-				fin.close();
+				Script script = scriptCompiler.compile(this.jsContext, scripts[i]);
+				scriptLoop.setRunningScript(scripts[i].getName());
+				try {
+					script.exec(this.jsContext, jsScope);
+				}
+				finally {
+					scriptLoop.setRunningScript(null);
+				}
 			}
 
 			// Scan for plugins
 			loadPlugins(params);
 			
-			// Make 'seq' JS object if internally sequenced
-			if (this.clock instanceof InkClockInternalThread) {
+			// Make 'seq' JS object if internally sequenced or rendering
+			if (this.clock instanceof InkClockInternal) {
 				ScriptableObject.defineClass(jsScope, InkClockInternalThreadObject.class);
 				InkClockInternalThreadObject jsClock = (InkClockInternalThreadObject)this.jsContext.newObject(jsScope, "InkClockInternalThreadObject");
-				jsClock.setClock((InkClockInternalThread)this.clock);
+				jsClock.setClock((InkClockInternal)this.clock);
+				jsClock.setOutputs(this.midiOuts);
 				jsScope.put("seq", jsScope, jsClock);
 			}
 
-			// Get reference to onmidiin function if it exists
-			Object func = this.jsScope.get("onmidiin", jsScope);
-			this.jsMidiInFunc = (func instanceof Function) ? (Function)func : null;
+			// Get references to onmidiin and ontick functions if they exist
+			refreshJsFuncs();
+
+			// Watch trackDir/*.js for changes
+			if (params.containsKey("watch")) {
+				new ScriptWatcher(this.trackDir, this.scriptCompiler, this).start();
+			}
 
-			// Get reference to ontick function if it exists
-			func = this.jsScope.get("ontick", jsScope);
-			this.jsTickFunc = (func instanceof Function) ? (Function)func : null;
+			// Expose live counters over JMX
+			registerMetrics();
 
 			// Start the clock if we are using an internal clock
-			if (this.clock instanceof InkClockInternalThread) {
+			if (this.clock instanceof InkClockInternal) {
+				this.renderStarted = System.currentTimeMillis();
 				this.clock.play();
 			}
 
@@ -234,6 +437,10 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 			e.printStackTrace();
 			System.exit(1);
 		}
+		finally {
+			Context.exit();
+			this.jsContext = null;
+		}
 
 	}
 
@@ -255,7 +462,9 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 			if (!argNext.contains(":")) {
 				throw new IllegalArgumentException("Invalid midi parameter " + argNext + "; expected format (#|device):alias");
 			}
-			String[] deviceAlias = argNext.split(":", 2);
+			// Split on the last colon, as virtual device names contain colons
+			int split = argNext.lastIndexOf(':');
+			String[] deviceAlias = { argNext.substring(0, split), argNext.substring(split + 1) };
 			MidiIo io = null;
 			MidiDevice device = null;
 			if (isIn) {
@@ -264,17 +473,52 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 					: midiLoader.getMidiTransmitterByName(deviceAlias[0]);
 				if (device != null) io = new MidiInput(device);
 			}
-			else {
+			else if (this.renderSequence == null) {
 				device = deviceAlias[0].matches("^\\d+$")
 					? midiLoader.getMidiReceiverByNumber((new Integer(deviceAlias[0])).intValue())
 					: midiLoader.getMidiReceiverByName(deviceAlias[0]);
 				if (device != null) io = new MidiOutput(device);
 			}
+			else {
+				// Capture output in a track of its own instead of opening it
+				io = new MidiCaptureOutput((InkClockRender)this.clock, this.renderSequence.createTrack());
+			}
 			if (io == null) {
 				System.err.println("Unable to open MIDI device " + deviceAlias[0] + " as " + (isIn ? "input" : "output"));
 				System.exit(1);
 			}
-			midiIos.put((String)deviceAlias[1], isIn ? (MidiInput)io : (MidiOutput)io);
+			io.setAlias(deviceAlias[1]);
+			midiIos.put(io.getAlias(), isIn ? (MidiInput)io : (MidiOutput)io);
+		}
+	}
+
+	/**
+	 * Registers JMX MBeans exposing live counters of the sequencer, script
+	 * loop and each MIDI port (see InkfishMetrics and MidiIoMetrics)
+	 */
+	protected void registerMetrics() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(
+				new InkfishMetrics(this.clock, this.scriptLoop, this.tickTimer, this.midiInTimer),
+				new ObjectName("cc.atoi.inkfish:type=Metrics")
+			);
+			for (String name : midiIns.keySet()) {
+				server.registerMBean(
+					new MidiIoMetrics(midiIns.get(name)),
+					new ObjectName("cc.atoi.inkfish:type=Input,name=" + ObjectName.quote(name))
+				);
+			}
+			for (int i = 0; i < jsMidiOuts.length; i++) {
+				MidiOutput output = (MidiOutput)jsMidiOuts[i].getDevice();
+				server.registerMBean(
+					new MidiIoMetrics(output, jsMidiOuts[i]),
+					new ObjectName("cc.atoi.inkfish:type=Output,name=" + ObjectName.quote(output.getAlias()))
+				);
+			}
+		}
+		catch (JMException e) {
+			System.err.println("Unable to register metrics (" + e.getMessage() + ")");
 		}
 	}
 
@@ -327,12 +571,7 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 	 * @return the string alias for the MIDI device
 	 */
 	protected String aliasForMidiInput(MidiInput i) {
-		for (String alias : midiIns.keySet()) {
-			if (midiIns.get(alias) == i) {
-				return alias;
-			}
-		}
-		return null;
+		return i.getAlias();
 	}
 
 	/**
@@ -358,7 +597,59 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 	/**
 	 * Invoked when playback on the sequencer is stopped
 	 */
-	public void onStop(long tick) { }
+	public void onStop(long tick) {
+		printStats();
+	}
+
+	/**
+	 * Waits for offline rendering to finish and writes the rendered file.
+	 * Every stop listener has run by then, so note-offs still pending at the
+	 * end are in the file. Returns false if the file could not be written.
+	 */
+	protected boolean finishRender() throws InterruptedException {
+		((InkClockRender)this.clock).join();
+		try {
+			MidiSystem.write(this.renderSequence, 1, this.renderFile);
+			System.err.println("Rendered " + this.clock.getTick() + " ticks to " + this.renderFile.getPath() + " in " + (System.currentTimeMillis() - this.renderStarted) + " ms");
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println("Unable to write " + this.renderFile.getAbsolutePath() + " (" + e.getMessage() + ")");
+			return false;
+		}
+	}
+
+	/**
+	 * Prints percentiles of how late ticks were raised and messages reached
+	 * each output so far, if measured. Skipped if no tick has been raised
+	 * since the last time, e.g. at exit right after a stop.
+	 */
+	protected synchronized void printStats() {
+		long ticksRaised = this.clock.getTicksRaised();
+		if (!this.isPrintingStats || ticksRaised == this.statsPrintedAt) {
+			return;
+		}
+		this.statsPrintedAt = ticksRaised;
+		System.err.format("%-20s %10s %9s %9s %9s %9s\n", "Lateness (ms)", "count", "p50", "p99", "p99.9", "max");
+		printStats("ticks", this.clock.getStats());
+		for (String name : midiOuts.keySet()) {
+			printStats("out " + name, midiOuts.get(name).getStats());
+		}
+	}
+
+	/**
+	 * Prints percentiles of a histogram in milliseconds
+	 */
+	protected void printStats(String label, LatencyHistogram h) {
+		System.err.format("%-20s %10d %9.3f %9.3f %9.3f %9.3f\n",
+			label,
+			h.getCount(),
+			h.getValueAtPercentile(50) / 1e6,
+			h.getValueAtPercentile(99) / 1e6,
+			h.getValueAtPercentile(99.9) / 1e6,
+			h.getMax() / 1e6
+		);
+	}
 
 	/**
 	 * Invoked when playback on the sequencer is started
@@ -371,8 +662,8 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 	public void onContinue(long tick) { }
 
 	/**
-	 * Invokes the 'onmidiin' function in JavaScript if it is declared,
-	 * passing in the name of the receiving device and the message bytes
+	 * Posts a MIDI message to the script loop if the 'onmidiin' function in
+	 * JavaScript is declared
 	 * 
 	 * @param device the receiving MIDI device
 	 * @param msg the MIDI message received
@@ -382,25 +673,160 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 		if (jsMidiInFunc == null) {
 			return;
 		}
-		jsContext = Context.enter();
-		byte[] bytes = msg.getMessage();
-		Object args[] = { aliasForMidiInput(device), bytes[0] & 0xF0, bytes[0] & 0x0F, bytes.length > 0 ? bytes[1] : null, bytes.length > 1 ? bytes[2] : null, ts };
-		jsMidiInFunc.call(jsContext, jsScope, jsScope, args);
+		scriptLoop.postMidiIn(device, msg, ts);
 	}
 
 	/**
-	 * Invokes the 'ontick' function in JavaScript if it is declared for each
-	 * tick where tick % jsDivisor is 0
+	 * Posts a tick to the script loop if the 'ontick' function in JavaScript
+	 * is declared and tick % jsDivisor is 0. The tick is dropped if the
+	 * script thread has fallen too far behind.
 	 * 
 	 * @param tick the current tick value
 	 */
 	protected void forwardTickToJs(long tick) {
-		if (jsTickFunc == null || tick % jsDivisor != 0) {
+		boolean isReload = hasPendingScripts && tick % (ppqn * 4) == 0;
+		if (!isReload && (jsTickFunc == null || tick % jsDivisor != 0)) {
+			return;
+		}
+		scriptLoop.postTick(tick, clock.getTickNanos());
+	}
+
+	/**
+	 * Invokes the 'onmidiin' function in JavaScript, passing in the name of
+	 * the receiving device, the command, channel and data bytes (null if the
+	 * message is too short to have them), the timestamp and a reusable
+	 * MidiEventObject view of the message. Runs on the script thread.
+	 */
+	public void onScriptMidiIn(Context cx, MidiInput device, MidiMessage msg, long ts) {
+		Function func = jsMidiInFunc;
+		if (func == null) {
+			return;
+		}
+		Object[] args = device.getScriptArgs();
+		MidiEventObject event = (MidiEventObject)args[6];
+		event.set(msg, ts);
+		int status = event.getStatus();
+		int length = event.getLength();
+		args[1] = COMMANDS[(status >> 4) & 0x0F];
+		args[2] = status & 0x0F;
+		args[3] = length > 1 ? (Object)event.getData1() : null;
+		args[4] = length > 2 ? (Object)event.getData2() : null;
+		args[5] = ts;
+		long started = System.nanoTime();
+		try {
+			func.call(cx, jsScope, jsScope, args);
+		}
+		finally {
+			midiInTimer.record(System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Invokes the 'ontick' function in JavaScript. Runs on the script thread.
+	 * Recompiled scripts are run first if this tick starts a bar. Messages
+	 * held back by coalescing outputs are sent afterwards.
+	 */
+	public void onScriptTick(Context cx, long tick) {
+		if (hasPendingScripts && tick % (ppqn * 4) == 0) {
+			runPendingScripts(cx);
+		}
+		Function func = jsTickFunc;
+		if (func == null || tick % jsDivisor != 0) {
 			return;
 		}
-		jsContext = Context.enter();
 		Object args[] = { tick / jsDivisor };
-		jsTickFunc.call(jsContext, jsScope, jsScope, args);
+		long started = System.nanoTime();
+		try {
+			func.call(cx, jsScope, jsScope, args);
+		}
+		finally {
+			tickTimer.record(System.nanoTime() - started);
+			for (int i = 0; i < jsMidiOuts.length; i++) {
+				jsMidiOuts[i].flush();
+			}
+		}
+	}
+
+	/**
+	 * Queues a recompiled script to be run at the next bar boundary. Invoked
+	 * on the script watcher thread.
+	 */
+	public void onScriptChanged(String name, Script script) {
+		synchronized (pendingScripts) {
+			pendingScripts.put(name, script);
+			hasPendingScripts = true;
+		}
+	}
+
+	/**
+	 * Runs recompiled scripts in the global scope and picks up the new
+	 * 'ontick' and 'onmidiin' functions. Patterns and sched.every
+	 * subscriptions created by the previous run of a script are dropped
+	 * first, so rerunning it does not play them twice. If a script throws,
+	 * the previous functions, patterns and subscriptions are put back. Runs
+	 * on the script thread.
+	 */
+	protected void runPendingScripts(Context cx) {
+		LinkedHashMap<String, Script> scripts;
+		synchronized (pendingScripts) {
+			scripts = new LinkedHashMap<String, Script>(pendingScripts);
+			pendingScripts.clear();
+			hasPendingScripts = false;
+		}
+		for (String name : scripts.keySet()) {
+			Object prevMidiInFunc = jsScope.get("onmidiin", jsScope);
+			Object prevTickFunc = jsScope.get("ontick", jsScope);
+			PatternObject[][] prevPatterns = new PatternObject[jsMidiOuts.length][];
+			for (int i = 0; i < jsMidiOuts.length; i++) {
+				prevPatterns[i] = jsMidiOuts[i].removePatterns(name);
+			}
+			TickSubscription[] prevSubscriptions = jsScheduler.removeSubscriptions(name);
+			scriptLoop.setRunningScript(name);
+			try {
+				scripts.get(name).exec(cx, jsScope);
+				System.err.println("Reloaded " + name);
+			}
+			catch (RhinoException e) {
+				System.err.println("js> " + e.getMessage() + "; keeping previous version of " + name);
+				restoreJsFunc("onmidiin", prevMidiInFunc);
+				restoreJsFunc("ontick", prevTickFunc);
+				for (int i = 0; i < jsMidiOuts.length; i++) {
+					jsMidiOuts[i].removePatterns(name);
+					for (PatternObject pattern : prevPatterns[i]) {
+						jsMidiOuts[i].addPattern(pattern);
+					}
+				}
+				jsScheduler.removeSubscriptions(name);
+				jsScheduler.addSubscriptions(prevSubscriptions);
+			}
+			finally {
+				scriptLoop.setRunningScript(null);
+			}
+		}
+		refreshJsFuncs();
+	}
+
+	/**
+	 * Puts a global back to a previous value, deleting it if it did not exist
+	 */
+	protected void restoreJsFunc(String name, Object value) {
+		if (value == Scriptable.NOT_FOUND) {
+			jsScope.delete(name);
+		}
+		else {
+			jsScope.put(name, jsScope, value);
+		}
+	}
+
+	/**
+	 * Updates references to the 'onmidiin' and 'ontick' functions in
+	 * JavaScript
+	 */
+	protected void refreshJsFuncs() {
+		Object func = this.jsScope.get("onmidiin", jsScope);
+		this.jsMidiInFunc = (func instanceof Function) ? (Function)func : null;
+		func = this.jsScope.get("ontick", jsScope);
+		this.jsTickFunc = (func instanceof Function) ? (Function)func : null;
 	}
 
 	/**
@@ -411,23 +837,94 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 			  "Usage:\n"
 			+ "java Inkfish [ --help\n"
 			+ "             | --list\n"
-			+ "             | --dir --in* --out* --seq? --ppqn? --delay? --divisor? ]\n\n"
+			+ "             | --dir --in* --out* --filter* --seq? --smooth? --ppqn? --delay?\n"
+			+ "               --tempo? --swing? --groove? --divisor? --lookahead? --jsopt?\n"
+			+ "               --watch? --render? --length? --seed? --stats? ]\n\n"
 			+ "--help      Prints this help message.\n"
 			+ "--list      Lists MIDI devices by number and exits.\n"
 			+ "--dir       Sets the working directory. (Inkfish will look for and .js files\n"
 			+ "            in this directory.)\n"
 			+ "--in        Makes a reference to a MIDI input device by name or number. The\n"
-			+ "            format for this switch is \"(#|name):alias\".\n"
+			+ "            format for this switch is \"(#|name):alias\". Names starting\n"
+			+ "            with \"virtual:\" open in-process loopback devices shared by\n"
+			+ "            name, e.g. --out virtual:bus:a --in virtual:bus:b.\n"
 			+ "--out       Same as --in except for MIDI output devices.\n"
+			+ "--filter    Drops incoming messages on an input before they reach scripts.\n"
+			+ "            The format is \"alias:spec\" where spec is a comma-separated\n"
+			+ "            list such as \"-realtime,ch=1-4,notes=36-51\". Terms are\n"
+			+ "            -clock -realtime -sensing -sysex -notes -polypressure -cc -pc\n"
+			+ "            -pressure -bend -0x## ch=#-# notes=#-#\n"
 			+ "--seq       Sets an external sequencer source. If not specified, the internal\n"
-			+ "            sequencer will be used.\n"
+			+ "            sequencer will be used. \"virtual:clock:bpm\" generates MIDI\n"
+			+ "            clock in-process, e.g. virtual:clock:120. Opened with --out as\n"
+			+ "            well (e.g. --out virtual:clock:120:clk), scripts control it:\n"
+			+ "            clk.write(0xFA) restarts, 0xFC stops, 0xFB continues, 0xF8\n"
+			+ "            steps one pulse while stopped (after a CONTINUE for the first\n"
+			+ "            step) and clk.setClockTempo(bpm) sets the tempo.\n"
+			+ "--smooth    Smooths the timing of an external sequencer by raising ticks at\n"
+			+ "            times estimated from its incoming pulses. The value is the\n"
+			+ "            number of ticks per incoming pulse; e.g. 4 turns 24 PPQN\n"
+			+ "            into 96 PPQN. --divisor then counts the finer ticks, and its\n"
+			+ "            default is scaled to match.\n"
 			+ "--ppqn      Sets the PPQN of the sequencer. (default = 24)\n"
 			+ "--delay     Sets the pulse delay of the internal sequencer in milliseconds.\n"
 			+ "            (default = 21)\n"
+			+ "--tempo     Sets the tempo of the internal sequencer in beats per minute.\n"
+			+ "            Overrides --delay and may be fractional, e.g. 120 or 93.5.\n"
+			+ "--swing     Swings every other step of the internal sequencer (also when\n"
+			+ "            rendering), or of an external one with --smooth. The format is\n"
+			+ "            \"percent[:stepTicks]\" where percent is the position of the\n"
+			+ "            late step within each pair, from 50 (straight) to 75, and\n"
+			+ "            steps default to 16th notes, e.g. 66 or 58:12.\n"
+			+ "--groove    Shifts the steps of the internal sequencer (also when\n"
+			+ "            rendering), or of an external one with --smooth, by a groove\n"
+			+ "            table file. The format is \"file[:stepTicks]\". The file lists\n"
+			+ "            the offset of each step in percent of a step (-50 to 50).\n"
 			+ "--divisor   Sets the tick divisor. Setting this to the same value of PPQN\n"
 			+ "            means the ontick function will be called every quarter note,\n"
 			+ "            while a value of 1 means ontick will be called every clock pulse\n"
-			+ "            (might be slow). (default = 6)\n"
+			+ "            (might be slow). For fine timing, prefer a high --ppqn (e.g. 960)\n"
+			+ "            with sched.every(\"1/16\", func), which only calls into\n"
+			+ "            JavaScript on subscribed ticks. (default = 6)\n"
+			+ "--lookahead Raises each tick of the internal sequencer this many\n"
+			+ "            milliseconds early and sends the messages it plays (patterns,\n"
+			+ "            tick-length note-offs, coalesced controllers, and messages\n"
+			+ "            written by ontick and sched.every callbacks) with timestamps\n"
+			+ "            for the tick's deadline, or holds them until then if a device\n"
+			+ "            does not report its position. Messages written by onmidiin\n"
+			+ "            are sent immediately. (default = 0, i.e. send immediately)\n"
+			+ "--jsopt     Sets the Rhino optimization level of user scripts, from -1\n"
+			+ "            (interpreted) to 9. Scripts compiled at level 0 or higher are\n"
+			+ "            cached in .inkfish-cache/ in the working directory. (default = 0)\n"
+			+ "--watch     Recompiles .js files in the working directory when they change\n"
+			+ "            and runs them at the next bar boundary (every 4 quarter notes)\n"
+			+ "            without stopping the sequencer. Patterns and sched.every\n"
+			+ "            subscriptions created when a script runs are dropped before\n"
+			+ "            it is run again; those created later by callbacks are kept.\n"
+			+ "--render    Renders offline as fast as possible to a type 1 Standard MIDI\n"
+			+ "            File instead of playing in real time. Each --out becomes a track\n"
+			+ "            named after its alias and no output devices are opened (the\n"
+			+ "            device part of --out is ignored). Tempo changes made with\n"
+			+ "            seq.setTempo() or seq.rampTempo(), swing and grooves are\n"
+			+ "            written to a conductor track as tempo events. Delays in\n"
+			+ "            milliseconds (including SysEx chunk delays) are converted to\n"
+			+ "            ticks at the current tempo, and pacing is ignored. Pattern\n"
+			+ "            probabilities are seeded with 0 unless --seed is given, but\n"
+			+ "            Math.random() in scripts is not seeded, so scripts using it\n"
+			+ "            render differently each time.\n"
+			+ "--length    Sets the number of bars (4 quarter notes) to render.\n"
+			+ "            (default = 16)\n"
+			+ "--seed      Seeds the step probabilities of patterns, so that they play\n"
+			+ "            the same steps on every run. (default = random, or 0 when\n"
+			+ "            rendering)\n"
+			+ "--stats     Measures how late each tick is raised and each message reaches\n"
+			+ "            each output, relative to its deadline, and prints p50, p99,\n"
+			+ "            p99.9 and max in milliseconds so far at every stop or pause and\n"
+			+ "            at exit. With the internal sequencer, seq.stats() returns them\n"
+			+ "            to scripts.\n"
+			+ "\nLive counters (ticks, late ticks, queue depths, script callback times,\n"
+			+ "messages per port and GC) are exposed as JMX MBeans under cc.atoi.inkfish,\n"
+			+ "e.g. for jconsole.\n"
 		);
 	}
 
@@ -487,7 +984,17 @@ public class Inkfish implements InkClockListener, MidiInputListener {
 		}
 				
 		// Instantiate Inkfish with params
-		new Inkfish(params);
+		Inkfish inkfish = new Inkfish(params);
+
+		// When rendering offline, exit once the file is written
+		if (inkfish.renderSequence != null) {
+			try {
+				System.exit(inkfish.finishRender() ? 0 : 1);
+			}
+			catch (InterruptedException e) {
+				System.exit(1);
+			}
+		}
 		
 	}
 	
@@ -0,0 +1,153 @@
+package cc.atoi.inkfish;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Live counters of a running Inkfish instance, registered as the JMX MBean
+ * cc.atoi.inkfish:type=Metrics so they can be watched with jconsole or any
+ * JMX client while playing. Counters are kept by the code they count with
+ * plain volatile or atomic fields; this class only reads them, so the tick
+ * path never allocates or locks on its behalf.
+ */
+public class InkfishMetrics implements InkfishMetricsMBean {
+
+	/**
+	 * Sequencer
+	 */
+	private InkClock clock;
+
+	/**
+	 * Script loop
+	 */
+	private ScriptLoop scriptLoop;
+
+	/**
+	 * Time spent in the 'ontick' function
+	 */
+	private CallTimer tickTimer;
+
+	/**
+	 * Time spent in the 'onmidiin' function
+	 */
+	private CallTimer midiInTimer;
+
+	/**
+	 * Garbage collectors of this JVM
+	 */
+	private List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+	/**
+	 * Sets up metrics
+	 * @param clock			sequencer
+	 * @param scriptLoop	script loop
+	 * @param tickTimer		time spent in the 'ontick' function
+	 * @param midiInTimer	time spent in the 'onmidiin' function
+	 */
+	public InkfishMetrics(InkClock clock, ScriptLoop scriptLoop, CallTimer tickTimer, CallTimer midiInTimer) {
+		this.clock = clock;
+		this.scriptLoop = scriptLoop;
+		this.tickTimer = tickTimer;
+		this.midiInTimer = midiInTimer;
+	}
+
+	/**
+	 * Returns the current tick of the sequencer
+	 */
+	public long getTick() { return clock.getTick(); }
+
+	/**
+	 * Returns the number of ticks raised
+	 */
+	public long getTicksRaised() { return clock.getTicksRaised(); }
+
+	/**
+	 * Returns the number of ticks raised more than a millisecond late
+	 */
+	public long getLateTicks() { return clock.getLateTicks(); }
+
+	/**
+	 * Returns the number of messages and tasks waiting on the MidiScheduler
+	 */
+	public int getPendingDelayedSends() { return MidiScheduler.getInstance().getPending(); }
+
+	/**
+	 * Returns the number of events waiting for the script thread
+	 */
+	public long getScriptQueueDepth() { return scriptLoop.getDepth(); }
+
+	/**
+	 * Returns the longest an event has waited for the script thread
+	 */
+	public double getScriptMaxLatency() { return scriptLoop.getMaxLatency() / 1e6; }
+
+	/**
+	 * Returns the number of ticks and calls dropped because the script thread
+	 * fell too far behind
+	 */
+	public long getScriptEventsDropped() { return scriptLoop.getDroppedCount(); }
+
+	/**
+	 * Returns the number of calls into the 'ontick' function
+	 */
+	public long getOnTickCalls() { return tickTimer.count; }
+
+	/**
+	 * Returns the total time spent in the 'ontick' function
+	 */
+	public double getOnTickTotalTime() { return tickTimer.totalNanos / 1e6; }
+
+	/**
+	 * Returns the longest call into the 'ontick' function
+	 */
+	public double getOnTickMaxTime() { return tickTimer.maxNanos / 1e6; }
+
+	/**
+	 * Returns the number of calls into the 'onmidiin' function
+	 */
+	public long getOnMidiInCalls() { return midiInTimer.count; }
+
+	/**
+	 * Returns the total time spent in the 'onmidiin' function
+	 */
+	public double getOnMidiInTotalTime() { return midiInTimer.totalNanos / 1e6; }
+
+	/**
+	 * Returns the longest call into the 'onmidiin' function
+	 */
+	public double getOnMidiInMaxTime() { return midiInTimer.maxNanos / 1e6; }
+
+	/**
+	 * Returns the number of garbage collections by all collectors
+	 */
+	public long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			count += Math.max(collector.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the time spent in garbage collections by all collectors in
+	 * milliseconds
+	 */
+	public long getGcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			time += Math.max(collector.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	/**
+	 * Resets the longest script latency and callback times to 0
+	 */
+	public void resetMaxima() {
+		scriptLoop.resetMaxLatency();
+		tickTimer.maxNanos = 0;
+		midiInTimer.maxNanos = 0;
+	}
+
+}
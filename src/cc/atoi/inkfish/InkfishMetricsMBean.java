@@ -0,0 +1,90 @@
+package cc.atoi.inkfish;
+
+/**
+ * JMX management interface of InkfishMetrics. Times are in milliseconds.
+ */
+public interface InkfishMetricsMBean {
+
+	/**
+	 * Returns the current tick of the sequencer
+	 */
+	public long getTick();
+
+	/**
+	 * Returns the number of ticks raised
+	 */
+	public long getTicksRaised();
+
+	/**
+	 * Returns the number of ticks raised more than a millisecond late
+	 */
+	public long getLateTicks();
+
+	/**
+	 * Returns the number of messages and tasks waiting on the MidiScheduler
+	 */
+	public int getPendingDelayedSends();
+
+	/**
+	 * Returns the number of events waiting for the script thread
+	 */
+	public long getScriptQueueDepth();
+
+	/**
+	 * Returns the longest an event has waited for the script thread
+	 */
+	public double getScriptMaxLatency();
+
+	/**
+	 * Returns the number of ticks and calls dropped because the script thread
+	 * fell too far behind
+	 */
+	public long getScriptEventsDropped();
+
+	/**
+	 * Returns the number of calls into the 'ontick' function
+	 */
+	public long getOnTickCalls();
+
+	/**
+	 * Returns the total time spent in the 'ontick' function
+	 */
+	public double getOnTickTotalTime();
+
+	/**
+	 * Returns the longest call into the 'ontick' function
+	 */
+	public double getOnTickMaxTime();
+
+	/**
+	 * Returns the number of calls into the 'onmidiin' function
+	 */
+	public long getOnMidiInCalls();
+
+	/**
+	 * Returns the total time spent in the 'onmidiin' function
+	 */
+	public double getOnMidiInTotalTime();
+
+	/**
+	 * Returns the longest call into the 'onmidiin' function
+	 */
+	public double getOnMidiInMaxTime();
+
+	/**
+	 * Returns the number of garbage collections by all collectors
+	 */
+	public long getGcCount();
+
+	/**
+	 * Returns the time spent in garbage collections by all collectors in
+	 * milliseconds
+	 */
+	public long getGcTime();
+
+	/**
+	 * Resets the longest script latency and callback times to 0
+	 */
+	public void resetMaxima();
+
+}
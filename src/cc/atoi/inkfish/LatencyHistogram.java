@@ -0,0 +1,132 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the
+ * style of HdrHistogram: values below 128 ns are counted exactly and every
+ * power of two above that is split into 64 buckets, so percentiles are
+ * accurate to within about 1.6% up to hundreds of years.
+ *
+ * Recording never allocates or locks and may be done from any number of
+ * threads at once. Negative latencies (early events) are counted as 0.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of buckets per power of two (above the exact range)
+	 */
+	static final int SUB_BUCKETS = 64;
+
+	/**
+	 * log2(SUB_BUCKETS)
+	 */
+	static final int SUB_BUCKET_BITS = 6;
+
+	/**
+	 * Number of buckets for every non-negative long value
+	 */
+	static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	/**
+	 * Count of values in each bucket
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Number of values recorded
+	 */
+	private final AtomicLong count = new AtomicLong(0);
+
+	/**
+	 * Largest value recorded
+	 */
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records a latency
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) { }
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the largest value recorded in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value in nanoseconds that the given percentage of recorded
+	 * values are at or below (rounded up to the top of its bucket), or 0 if
+	 * nothing was recorded
+	 * @param percentile percentage (0 to 100)
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max((long)Math.ceil(Math.min(percentile, 100) / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded value. Values recorded at the same time may be
+	 * partly forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the bucket of a non-negative value
+	 */
+	static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int)value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	/**
+	 * Returns the largest value that falls into a bucket
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+}
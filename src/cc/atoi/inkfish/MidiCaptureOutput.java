@@ -0,0 +1,125 @@
+package cc.atoi.inkfish;
+
+import javax.sound.midi.*;
+
+/**
+ * A MIDI output that records messages into a track of a Standard MIDI File
+ * sequence instead of sending them to a device. Each message is stamped
+ * with the current tick of an offline sequencer; delayed messages are
+ * converted from microseconds to ticks at its tempo.
+ */
+public class MidiCaptureOutput extends MidiOutput implements Receiver {
+
+	/**
+	 * Sequencer whose tick stamps messages
+	 */
+	private InkClockRender clock;
+
+	/**
+	 * Track recording messages
+	 */
+	private Track track;
+
+	/**
+	 * Sets up a capture output
+	 * @param clock	offline sequencer
+	 * @param track	track to record messages into
+	 */
+	public MidiCaptureOutput(InkClockRender clock, Track track) {
+		this.clock = clock;
+		this.track = track;
+		this.receiver = this;
+	}
+
+	/**
+	 * Returns the name of this output
+	 */
+	public String getName() {
+		return "capture";
+	}
+
+	/**
+	 * Sets name of this port in user JavaScript, also naming the track
+	 */
+	public void setAlias(String alias) {
+		super.setAlias(alias);
+		try {
+			byte[] name = alias.getBytes("US-ASCII");
+			MetaMessage meta = new MetaMessage();
+			meta.setMessage(0x03, name, name.length);
+			track.add(new MidiEvent(meta, 0));
+		}
+		catch (Exception e) {
+			return;
+		}
+	}
+
+	/**
+	 * Records a message at the current tick
+	 */
+	public void send(MidiMessage msg, long ts) {
+		track.add(new MidiEvent((MidiMessage)msg.clone(), clock.getTick()));
+	}
+
+	/**
+	 * Records a short message at the tick the delay ends on, clamped to the
+	 * end of the rendered length
+	 */
+	public void schedule(int msg, long delayMicros) {
+		try {
+			ShortMessage smsg = new ShortMessage();
+			smsg.setMessage(msg & 0xFF, (msg >> 8) & 0xFF, (msg >> 16) & 0xFF);
+			track.add(new MidiEvent(smsg, Math.min(clock.getTick() + clock.microsToTicks(delayMicros), clock.getLength())));
+		}
+		catch (InvalidMidiDataException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Records a SysEx message at the current tick. Chunks after the first
+	 * are recorded at the tick their delay ends on, clamped to the end of
+	 * the rendered length.
+	 */
+	public void writeSysex(byte[] data, int length, int chunkSize, int chunkDelayMs) throws InvalidMidiDataException {
+		if (chunkSize <= 0 || chunkSize >= length || chunkDelayMs <= 0) {
+			super.writeSysex(data, length, chunkSize, chunkDelayMs);
+			return;
+		}
+		if (length < 2 || (data[0] & 0xFF) != SysexMessage.SYSTEM_EXCLUSIVE || (data[length - 1] & 0xFF) != ShortMessage.END_OF_EXCLUSIVE) {
+			throw new InvalidMidiDataException("SysEx message must start with 0xF0 and end with 0xF7");
+		}
+		long start = clock.getTick();
+		for (int offset = 0, i = 0; offset < length; offset += chunkSize, i++) {
+			int n = Math.min(chunkSize, length - offset);
+			SysexMessage msg = new SysexMessage();
+			if (offset == 0) {
+				msg.setMessage(data, n);
+			}
+			else {
+				byte[] chunk = new byte[n + 1];
+				chunk[0] = (byte)ShortMessage.END_OF_EXCLUSIVE;
+				System.arraycopy(data, offset, chunk, 1, n);
+				msg.setMessage(chunk, n + 1);
+			}
+			track.add(new MidiEvent(msg, Math.min(start + clock.microsToTicks(i * chunkDelayMs * 1000L), clock.getLength())));
+		}
+	}
+
+	/**
+	 * Ignores pacing, which models the bandwidth of a wire that a file does
+	 * not have
+	 */
+	public void setPacing(long budgetMicros) { }
+
+	/**
+	 * No implementation
+	 */
+	public void close() { }
+
+	/**
+	 * No device to close
+	 */
+	protected void finalize() { }
+
+}
@@ -1,14 +1,18 @@
 package cc.atoi.inkfish;
 
+import java.util.HashMap;
 import javax.sound.midi.*;
 
 /**
- * Convenience class for loading MIDI devices
+ * Convenience class for loading MIDI devices. Names starting with
+ * "virtual:" load in-process virtual devices (see VirtualMidiDevice), which
+ * are created on first use and shared by name.
  * @author Adam Saponara
  */
 public class MidiDeviceLoader {
 
 	private MidiDevice.Info[] infos;
+	private HashMap<String, VirtualMidiDevice> virtualDevices = new HashMap<String, VirtualMidiDevice>();
 	private static MidiDeviceLoader instance;
 
 	public static MidiDeviceLoader getInstance() {
@@ -77,6 +81,10 @@ public class MidiDeviceLoader {
 
 	public MidiDevice getMidiDeviceByName(String deviceName, boolean isReceiver, boolean isTransmitter) {
 
+		if (deviceName.startsWith(VirtualMidiDevice.PREFIX)) {
+			return getVirtualMidiDevice(deviceName, isReceiver, isTransmitter);
+		}
+
 		for (int i = 0; i < infos.length; i++) {
 			if (!deviceName.equals(infos[i].getName())) {
 				continue;
@@ -117,5 +125,17 @@ public class MidiDeviceLoader {
 		return null;
 	}
 
+	public synchronized MidiDevice getVirtualMidiDevice(String deviceName, boolean isReceiver, boolean isTransmitter) {
+		VirtualMidiDevice device = virtualDevices.get(deviceName);
+		if (device == null) {
+			device = new VirtualMidiDevice(deviceName);
+			virtualDevices.put(deviceName, device);
+		}
+		if (isReceiver && device.getMaxReceivers() == 0) {
+			return null;
+		}
+		device.open();
+		return device;
+	}
 
 }
@@ -0,0 +1,180 @@
+package cc.atoi.inkfish;
+
+import javax.sound.midi.*;
+import org.mozilla.javascript.*;
+
+/**
+ * Read-only view of an incoming MIDI message for use in user scripts. One
+ * instance per MIDI input is reused for every message, and fields of short
+ * messages are read straight from the message, so no objects are allocated
+ * per message. The message bytes are only copied into a JavaScript array if
+ * a script asks for them (e.g., to read SysEx data).
+ */
+public class MidiEventObject extends ScriptableObject implements Scriptable {
+
+	/**
+	 * Required for serialization
+	 */
+	private static final long serialVersionUID = -3034837245405853390L;
+
+	/**
+	 * Alias of the MIDI input that received the message
+	 */
+	private String alias;
+
+	/**
+	 * Current message
+	 */
+	private MidiMessage msg;
+
+	/**
+	 * Timestamp of current message
+	 */
+	private long ts;
+
+	/**
+	 * Copy of the bytes of the current message if it is not a ShortMessage
+	 * and they were needed, otherwise null
+	 */
+	private byte[] raw;
+
+	/**
+	 * JavaScript array of the bytes of the current message if a script asked
+	 * for it, otherwise null
+	 */
+	private Scriptable bytes;
+
+	public MidiEventObject() { }
+
+	public String getClassName() { return "MidiEventObject"; }
+
+	public void jsConstructor() { }
+
+	/**
+	 * Sets the alias of the MIDI input that receives messages
+	 */
+	public void setAlias(String alias) {
+		this.alias = alias;
+	}
+
+	/**
+	 * Points the view at a new message
+	 * @param msg	message received
+	 * @param ts	timestamp of message
+	 */
+	public void set(MidiMessage msg, long ts) {
+		this.msg = msg;
+		this.ts = ts;
+		this.raw = null;
+		this.bytes = null;
+	}
+
+	/**
+	 * Returns the status byte
+	 */
+	public int getStatus() {
+		return msg.getStatus();
+	}
+
+	/**
+	 * Returns the length of the message in bytes including the status byte
+	 */
+	public int getLength() {
+		return msg.getLength();
+	}
+
+	/**
+	 * Returns the 2nd message byte, or 0 if there is none
+	 */
+	public int getData1() {
+		if (msg instanceof ShortMessage) {
+			return ((ShortMessage)msg).getData1();
+		}
+		return getLength() > 1 ? getRaw()[1] & 0xFF : 0;
+	}
+
+	/**
+	 * Returns the 3rd message byte, or 0 if there is none
+	 */
+	public int getData2() {
+		if (msg instanceof ShortMessage) {
+			return ((ShortMessage)msg).getData2();
+		}
+		return getLength() > 2 ? getRaw()[2] & 0xFF : 0;
+	}
+
+	/**
+	 * Returns the alias of the MIDI input that received the message
+	 */
+	public String jsGet_alias() { return alias; }
+
+	/**
+	 * Returns the status byte
+	 */
+	public int jsGet_status() { return getStatus(); }
+
+	/**
+	 * Returns the command (note on, control change, etc.) of a channel
+	 * message, or the status byte of a system message
+	 */
+	public int jsGet_command() {
+		int status = getStatus();
+		return status < 0xF0 ? status & 0xF0 : status;
+	}
+
+	/**
+	 * Returns the channel (0 to 15) of a channel message, or -1 for a system
+	 * message
+	 */
+	public int jsGet_channel() {
+		int status = getStatus();
+		return status < 0xF0 ? status & 0x0F : -1;
+	}
+
+	/**
+	 * Returns the 2nd message byte, or 0 if there is none
+	 */
+	public int jsGet_data1() { return getData1(); }
+
+	/**
+	 * Returns the 3rd message byte, or 0 if there is none
+	 */
+	public int jsGet_data2() { return getData2(); }
+
+	/**
+	 * Returns the length of the message in bytes including the status byte
+	 */
+	public int jsGet_length() { return getLength(); }
+
+	/**
+	 * Returns the timestamp of the message
+	 */
+	public double jsGet_timestamp() { return ts; }
+
+	/**
+	 * Returns all message bytes (including status and, for SysEx, the
+	 * trailing 0xF7) as a JavaScript array of numbers
+	 */
+	public Scriptable jsGet_bytes() {
+		if (bytes == null) {
+			byte[] b = getRaw();
+			Object[] values = new Object[b.length];
+			for (int i = 0; i < b.length; i++) {
+				values[i] = b[i] & 0xFF;
+			}
+			bytes = Context.getCurrentContext().newArray(ScriptableObject.getTopLevelScope(this), values);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a copy of the message bytes, made at most once per message
+	 */
+	private byte[] getRaw() {
+		if (raw == null) {
+			raw = msg.getMessage();
+		}
+		return raw;
+	}
+
+}
@@ -14,6 +14,32 @@ public class MidiInput extends MidiIo implements Receiver {
 	 */
 	protected ArrayList<MidiInputListener> listeners;
 
+	/**
+	 * Argument array reused for every call into the 'onmidiin' function in
+	 * user JavaScript for this port. The first element is always the alias
+	 * and the last is reserved for a reusable event object. Only touched on
+	 * the script thread.
+	 */
+	protected Object[] scriptArgs = new Object[7];
+
+	/**
+	 * Filter applied before messages reach listeners, or null to pass
+	 * everything
+	 */
+	protected volatile MidiInputFilter filter;
+
+	/**
+	 * Number of messages dropped by the filter. Only written by the
+	 * transmitting thread.
+	 */
+	protected volatile long droppedCount = 0;
+
+	/**
+	 * Number of messages received, including those dropped by the filter.
+	 * Only written by the transmitting thread.
+	 */
+	protected volatile long receivedCount = 0;
+
 	/**
 	 * Initializes a MIDI input port via a MidiDevice instance
 	 * @param device device that will transmit MIDI to us
@@ -24,6 +50,45 @@ public class MidiInput extends MidiIo implements Receiver {
 		listeners = new ArrayList<MidiInputListener>(1);
 	}
 
+	/**
+	 * Sets name of this port in user JavaScript
+	 */
+	public void setAlias(String alias) {
+		super.setAlias(alias);
+		scriptArgs[0] = this.alias;
+	}
+
+	/**
+	 * Returns the argument array reused for calls into the 'onmidiin'
+	 * function in user JavaScript, with the alias as first element
+	 */
+	public Object[] getScriptArgs() {
+		return scriptArgs;
+	}
+
+	/**
+	 * Sets the filter applied before messages reach listeners
+	 * @param filter filter, or null to pass everything
+	 */
+	public void setFilter(MidiInputFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Returns the number of messages dropped by the filter
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Returns the number of messages received, including those dropped by
+	 * the filter
+	 */
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
 	/**
 	 * Add a listener to the list
 	 */
@@ -35,6 +100,12 @@ public class MidiInput extends MidiIo implements Receiver {
 	 * Invoked by MIDI transmitter (think of this as an "onMidiIn" type callback) 
 	 */
 	public void send(MidiMessage msg, long ts) {
+		receivedCount++;
+		MidiInputFilter f = filter;
+		if (f != null && !f.accepts(msg)) {
+			droppedCount++;
+			return;
+		}
 		for (MidiInputListener listener : listeners) {
 			listener.onMidiIn(this, msg, ts);
 		}
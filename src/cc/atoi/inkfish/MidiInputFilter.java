@@ -0,0 +1,210 @@
+package cc.atoi.inkfish;
+
+import javax.sound.midi.*;
+
+/**
+ * Decides which incoming MIDI messages a MidiInput passes on to its
+ * listeners. Dropped status bytes are kept in a 256-bit set, accepted
+ * channels in a 16-bit mask, so checking a message is a few bit tests.
+ *
+ * A filter is described by a comma-separated list of terms:
+ *     -clock -realtime -sensing -sysex    drop system messages
+ *     -notes -polypressure -cc -pc        drop channel messages by type
+ *     -pressure -bend
+ *     -0xF8                               drop one status byte
+ *     ch=1-4                              accept only these channels (1-16);
+ *                                         may be repeated
+ *     notes=36-51                         accept only these note numbers
+ * For example, "-realtime,ch=10,notes=36-51".
+ */
+public class MidiInputFilter {
+
+	/**
+	 * Set of dropped status bytes
+	 */
+	private final long[] droppedStatuses = new long[4];
+
+	/**
+	 * Mask of accepted channels (bit 0 is channel 1)
+	 */
+	private int channels = 0xFFFF;
+
+	/**
+	 * Lowest accepted note number
+	 */
+	private int noteLow = 0;
+
+	/**
+	 * Highest accepted note number
+	 */
+	private int noteHigh = 127;
+
+	/**
+	 * Makes a filter that accepts everything
+	 */
+	public MidiInputFilter() { }
+
+	/**
+	 * Makes a filter from a description (see class documentation)
+	 * @param spec filter description
+	 * @throws IllegalArgumentException if spec is malformed
+	 */
+	public static MidiInputFilter parse(String spec) {
+		MidiInputFilter filter = new MidiInputFilter();
+		boolean hasChannels = false;
+		for (String term : spec.split(",")) {
+			term = term.trim().toLowerCase();
+			if (term.length() == 0) {
+				continue;
+			}
+			try {
+				if (term.startsWith("ch=")) {
+					int[] range = parseRange(term.substring(3));
+					if (!hasChannels) {
+						filter.channels = 0;
+						hasChannels = true;
+					}
+					filter.setChannels(range[0], range[1]);
+				}
+				else if (term.startsWith("notes=")) {
+					int[] range = parseRange(term.substring(6));
+					filter.setNoteRange(range[0], range[1]);
+				}
+				else if (term.equals("-clock")) {
+					filter.dropStatus(ShortMessage.TIMING_CLOCK);
+				}
+				else if (term.equals("-sensing")) {
+					filter.dropStatus(ShortMessage.ACTIVE_SENSING);
+				}
+				else if (term.equals("-realtime")) {
+					filter.dropStatuses(0xF8, 0xFF);
+				}
+				else if (term.equals("-sysex")) {
+					filter.dropStatus(SysexMessage.SYSTEM_EXCLUSIVE);
+					filter.dropStatus(SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE);
+				}
+				else if (term.equals("-notes")) {
+					filter.dropCommand(ShortMessage.NOTE_OFF);
+					filter.dropCommand(ShortMessage.NOTE_ON);
+				}
+				else if (term.equals("-polypressure")) {
+					filter.dropCommand(ShortMessage.POLY_PRESSURE);
+				}
+				else if (term.equals("-cc")) {
+					filter.dropCommand(ShortMessage.CONTROL_CHANGE);
+				}
+				else if (term.equals("-pc")) {
+					filter.dropCommand(ShortMessage.PROGRAM_CHANGE);
+				}
+				else if (term.equals("-pressure")) {
+					filter.dropCommand(ShortMessage.CHANNEL_PRESSURE);
+				}
+				else if (term.equals("-bend")) {
+					filter.dropCommand(ShortMessage.PITCH_BEND);
+				}
+				else if (term.startsWith("-0x")) {
+					filter.dropStatus(Integer.parseInt(term.substring(3), 16));
+				}
+				else {
+					throw new IllegalArgumentException("unknown term");
+				}
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid filter term " + term + " in " + spec + "; expected -clock, -realtime, -sensing, -sysex, -notes, -polypressure, -cc, -pc, -pressure, -bend, -0x##, ch=#-# or notes=#-#");
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Drops messages with a status byte
+	 * @param status status byte (0x80 to 0xFF)
+	 */
+	public void dropStatus(int status) {
+		dropStatuses(status, status);
+	}
+
+	/**
+	 * Drops messages with a range of status bytes
+	 * @param low	lowest status byte (0x80 to 0xFF)
+	 * @param high	highest status byte (0x80 to 0xFF)
+	 */
+	public void dropStatuses(int low, int high) {
+		if (low < 0x80 || high > 0xFF || low > high) {
+			throw new IllegalArgumentException("Invalid status range");
+		}
+		for (int status = low; status <= high; status++) {
+			droppedStatuses[status >> 6] |= 1L << (status & 63);
+		}
+	}
+
+	/**
+	 * Drops a channel message type on all channels
+	 * @param command MIDI command (note on, note off, control change)
+	 */
+	public void dropCommand(int command) {
+		dropStatuses(command & 0xF0, (command & 0xF0) | 0x0F);
+	}
+
+	/**
+	 * Accepts channel messages on a range of channels in addition to those
+	 * already accepted
+	 * @param low	lowest channel (1 to 16)
+	 * @param high	highest channel (1 to 16)
+	 */
+	public void setChannels(int low, int high) {
+		if (low < 1 || high > 16 || low > high) {
+			throw new IllegalArgumentException("Invalid channel range");
+		}
+		for (int channel = low; channel <= high; channel++) {
+			channels |= 1 << (channel - 1);
+		}
+	}
+
+	/**
+	 * Accepts note messages only within a range of note numbers
+	 * @param low	lowest note (0 to 127)
+	 * @param high	highest note (0 to 127)
+	 */
+	public void setNoteRange(int low, int high) {
+		if (low < 0 || high > 127 || low > high) {
+			throw new IllegalArgumentException("Invalid note range");
+		}
+		noteLow = low;
+		noteHigh = high;
+	}
+
+	/**
+	 * Returns true if a message should be passed on to listeners
+	 */
+	public boolean accepts(MidiMessage msg) {
+		int status = msg.getStatus();
+		if ((droppedStatuses[status >> 6] & (1L << (status & 63))) != 0) {
+			return false;
+		}
+		if (status < 0xF0) {
+			if ((channels & (1 << (status & 0x0F))) == 0) {
+				return false;
+			}
+			int command = status & 0xF0;
+			if ((command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF || command == ShortMessage.POLY_PRESSURE) && msg instanceof ShortMessage) {
+				int note = ((ShortMessage)msg).getData1();
+				if (note < noteLow || note > noteHigh) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses "#" or "#-#" into a two-element array
+	 */
+	private static int[] parseRange(String range) {
+		String[] parts = range.split("-", 2);
+		int low = Integer.parseInt(parts[0].trim());
+		int high = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : low;
+		return new int[] { low, high };
+	}
+
+}
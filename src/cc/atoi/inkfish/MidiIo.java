@@ -14,6 +14,11 @@ abstract class MidiIo {
 	 */
 	protected MidiDevice device;
 
+	/**
+	 * Name of this port in user JavaScript (interned), or null if not set
+	 */
+	protected String alias;
+
 	/**
 	 * Returns name of MIDI device
 	 */
@@ -21,6 +26,20 @@ abstract class MidiIo {
 		return device.getDeviceInfo().getName();
 	}
 
+	/**
+	 * Returns name of this port in user JavaScript, or null if not set
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * Sets name of this port in user JavaScript
+	 */
+	public void setAlias(String alias) {
+		this.alias = alias == null ? null : alias.intern();
+	}
+
 	/**
 	 * Upon garbage collection, close underlying MIDI device
 	 */
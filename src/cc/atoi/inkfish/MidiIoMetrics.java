@@ -0,0 +1,78 @@
+package cc.atoi.inkfish;
+
+/**
+ * Live counters of a MIDI input or output, registered as the JMX MBean
+ * cc.atoi.inkfish:type=Input,name=alias or type=Output,name=alias
+ */
+public class MidiIoMetrics implements MidiIoMetricsMBean {
+
+	/**
+	 * MIDI input, or null for an output
+	 */
+	private MidiInput input;
+
+	/**
+	 * MIDI output, or null for an input
+	 */
+	private MidiOutput output;
+
+	/**
+	 * JavaScript object of the output, or null
+	 */
+	private MidiIoObject outputObject;
+
+	/**
+	 * Sets up metrics of a MIDI input
+	 */
+	public MidiIoMetrics(MidiInput input) {
+		this.input = input;
+	}
+
+	/**
+	 * Sets up metrics of a MIDI output
+	 * @param output		MIDI output
+	 * @param outputObject	JavaScript object of the output, whose note queue
+	 * 						depth is reported
+	 */
+	public MidiIoMetrics(MidiOutput output, MidiIoObject outputObject) {
+		this.output = output;
+		this.outputObject = outputObject;
+	}
+
+	/**
+	 * Returns the name of the port in user JavaScript
+	 */
+	public String getAlias() { return input != null ? input.getAlias() : output.getAlias(); }
+
+	/**
+	 * Returns the name of the MIDI device
+	 */
+	public String getDeviceName() { return input != null ? input.getName() : output.getName(); }
+
+	/**
+	 * Returns the number of messages received (inputs)
+	 */
+	public long getMessagesIn() { return input != null ? input.getReceivedCount() : 0; }
+
+	/**
+	 * Returns the number of messages sent (outputs)
+	 */
+	public long getMessagesOut() { return output != null ? output.getSentCount() : 0; }
+
+	/**
+	 * Returns the number of messages dropped by the filter (inputs) or by
+	 * pacing (outputs)
+	 */
+	public long getDropped() { return input != null ? input.getDroppedCount() : output.getDroppedCount(); }
+
+	/**
+	 * Returns the number of messages sent late by pacing (outputs)
+	 */
+	public long getLate() { return output != null ? output.getLateCount() : 0; }
+
+	/**
+	 * Returns the number of NOTE_OFFs waiting for their tick (outputs)
+	 */
+	public int getNoteQueueDepth() { return outputObject != null ? outputObject.getNoteQueueDepth() : 0; }
+
+}
@@ -0,0 +1,44 @@
+package cc.atoi.inkfish;
+
+/**
+ * JMX management interface of MidiIoMetrics
+ */
+public interface MidiIoMetricsMBean {
+
+	/**
+	 * Returns the name of the port in user JavaScript
+	 */
+	public String getAlias();
+
+	/**
+	 * Returns the name of the MIDI device
+	 */
+	public String getDeviceName();
+
+	/**
+	 * Returns the number of messages received (inputs)
+	 */
+	public long getMessagesIn();
+
+	/**
+	 * Returns the number of messages sent (outputs)
+	 */
+	public long getMessagesOut();
+
+	/**
+	 * Returns the number of messages dropped by the filter (inputs) or by
+	 * pacing (outputs)
+	 */
+	public long getDropped();
+
+	/**
+	 * Returns the number of messages sent late by pacing (outputs)
+	 */
+	public long getLate();
+
+	/**
+	 * Returns the number of NOTE_OFFs waiting for their tick (outputs)
+	 */
+	public int getNoteQueueDepth();
+
+}
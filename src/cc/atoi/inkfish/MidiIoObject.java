@@ -2,8 +2,6 @@ package cc.atoi.inkfish;
 
 import org.mozilla.javascript.*;
 
-import java.util.LinkedList;
-import java.util.concurrent.*;
 import javax.sound.midi.*;
 
 /**
@@ -17,11 +15,6 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 	 */
 	private static final long serialVersionUID = 238270592527335642L;
 	
-	/**
-	 * Thread pool for sending messages with a delay
-	 */
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(64);
-	
 	/**
 	 * The current sequencer tick
 	 */
@@ -31,12 +24,44 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 	 * The underlying MIDI device
 	 */
 	private MidiIo dev;
+
+	/**
+	 * Sequencer driving this object
+	 */
+	private InkClock clock;
+
+	/**
+	 * Deadline of the tick being played in System.nanoTime() units (clock
+	 * thread only)
+	 */
+	private long tickNanos;
+	
+	/**
+	 * MIDI messages (packed by MidiOutput.pack) to be sent at specific tick
+	 * values in the future, keyed by tick. Guarded by its own monitor.
+	 */
+	private final ScheduleQueue noteQueue = new ScheduleQueue();
+
+	/**
+	 * Size of noteQueue, readable without locking
+	 */
+	private volatile int noteQueueDepth = 0;
+
+	/**
+	 * Patterns played on this output. Replaced rather than modified, so the
+	 * clock thread can read it without locking.
+	 */
+	private volatile PatternObject[] patterns = new PatternObject[0];
 	
 	/**
-	 * List of MIDI messages to be sent at specific tick values in the future.
-	 * This list is guaranteed to be sorted from lowest tick value to highest.
+	 * Number of sequencer ticks per quarter note
 	 */
-	private LinkedList<ScheduledMidiMessage> noteQueue = new LinkedList();
+	private int ppqn = 24;
+
+	/**
+	 * Scratch buffer for outgoing SysEx messages, reused between calls
+	 */
+	private byte[] sysexBuffer = new byte[256];
 	
 	public MidiIoObject() { }
 
@@ -50,14 +75,123 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 	 */
 	public void initialize(MidiIo dev, InkClock clock) {
 		this.dev = dev;
+		this.clock = clock;
 		clock.addListener(this);
 	}
+
+	/**
+	 * Initializes the MidiIoObject with the PPQN of the sequencer, which
+	 * patterns need to convert note lengths to ticks
+	 */
+	public void initialize(MidiIo dev, InkClock clock, int ppqn) {
+		this.ppqn = ppqn;
+		initialize(dev, clock);
+	}
+
+	/**
+	 * Returns the number of sequencer ticks per quarter note
+	 */
+	public int getPpqn() {
+		return ppqn;
+	}
+
+	/**
+	 * Returns the number of NOTE_OFFs waiting for their tick
+	 */
+	public int getNoteQueueDepth() {
+		return noteQueueDepth;
+	}
+
+	/**
+	 * Returns the underlying MIDI port
+	 */
+	MidiIo getDevice() {
+		return dev;
+	}
+
+	/**
+	 * Starts playing a pattern on every tick
+	 */
+	public synchronized void addPattern(PatternObject pattern) {
+		PatternObject[] current = patterns;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == pattern) {
+				return;
+			}
+		}
+		PatternObject[] next = new PatternObject[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = pattern;
+		patterns = next;
+	}
+
+	/**
+	 * Stops playing the patterns created by a user script and returns them
+	 * @param script name of the script (see PatternObject.getScript())
+	 */
+	synchronized PatternObject[] removePatterns(String script) {
+		PatternObject[] current = patterns;
+		int kept = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (!script.equals(current[i].getScript())) {
+				kept++;
+			}
+		}
+		PatternObject[] next = new PatternObject[kept];
+		PatternObject[] removed = new PatternObject[current.length - kept];
+		int k = 0, r = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (script.equals(current[i].getScript())) {
+				removed[r++] = current[i];
+			}
+			else {
+				next[k++] = current[i];
+			}
+		}
+		patterns = next;
+		return removed;
+	}
+
+	/**
+	 * Stops playing a pattern
+	 */
+	public synchronized void removePattern(PatternObject pattern) {
+		PatternObject[] current = patterns;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == pattern) {
+				PatternObject[] next = new PatternObject[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				patterns = next;
+				return;
+			}
+		}
+	}
 	
 
 	/**
-	 * Send a MIDI message. Returns true on success.  
+	 * Send a MIDI message. Returns true on success. System messages (0xF1 to
+	 * 0xFF, such as START or STOP) ignore the channel.
 	 */
 	public boolean jsFunction_write(int command, int channel, int data1, int data2, int tickLength, int msDelay, int msLength) {
+		return write(command, channel, data1, data2, tickLength, msDelay, msLength, false);
+	}
+
+	/**
+	 * Sends a note for the deadline of the tick being played, so it goes out
+	 * ahead of time with lookahead. Invoked on the clock thread by patterns.
+	 */
+	void writeAtTick(int command, int channel, int data1, int data2, int tickLength) {
+		write(command, channel, data1, data2, tickLength, 0, 0, true);
+	}
+
+	/**
+	 * Sends a MIDI message for the deadline of the tick being played (on the
+	 * clock thread) or of the tick being handled by the script loop (see
+	 * ScriptLoop.getDueNanos()), or right away otherwise. Returns true on
+	 * success.
+	 */
+	private boolean write(int command, int channel, int data1, int data2, int tickLength, int msDelay, int msLength, boolean atTick) {
 		
 		// Skip if we are not a MidiOutput device
 		if (dev == null || !(dev instanceof MidiOutput)) {
@@ -66,12 +200,17 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 		
 		// If this is a delayed message, schedule it
 		if (msDelay > 0) {
-			scheduler.schedule(new DelayedMidiMessage((MidiOutput)this.dev, command, channel, data1, data2), msDelay, TimeUnit.MILLISECONDS);
+			((MidiOutput)this.dev).schedule(MidiOutput.pack(command, channel, data1, data2), msDelay * 1000L);
 		}
 		// Otherwise, write message to MidiOutput device
 		else {
 			try {
-				((MidiOutput)dev).writeShort(command, channel, data1, data2);
+				if (atTick) {
+					((MidiOutput)dev).writeShort(command, channel, data1, data2, tickNanos);
+				}
+				else {
+					((MidiOutput)dev).writeShort(command, channel, data1, data2, ScriptLoop.getInstance().getDueNanos());
+				}
 			}
 			catch (InvalidMidiDataException e) {
 				return false;
@@ -82,43 +221,208 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 		if (command == ShortMessage.NOTE_ON) {
 			// Schedule NOTE_OFF tickLength sequencer ticks in the future
 			if (tickLength > 0) {
-				// Find index to sort
-				long offTick = this.tick + tickLength;
-				int insertIndex, l = noteQueue.size(); 
-				for (insertIndex = 0; insertIndex < l; insertIndex++) {
-					if (noteQueue.get(insertIndex).getTick() >= offTick) {
-						break;
-					}
+				synchronized (noteQueue) {
+					noteQueue.add(this.tick + tickLength, MidiOutput.pack(ShortMessage.NOTE_OFF, channel, data1, 0));
+					noteQueueDepth = noteQueue.size();
 				}
-				// Insert scheduled message in queue
-				noteQueue.add(insertIndex, new ScheduledMidiMessage(offTick, ShortMessage.NOTE_OFF, channel, data1, 0));
 			}
 			// Schedule NOTE_OFF msLength milliseconds in the future
 			else if (msLength > 0) {
-				scheduler.schedule(new DelayedMidiMessage((MidiOutput)this.dev, ShortMessage.NOTE_OFF, channel, data1, 0), msDelay + msLength, TimeUnit.MILLISECONDS);
+				((MidiOutput)this.dev).schedule(MidiOutput.pack(ShortMessage.NOTE_OFF, channel, data1, 0), (msDelay + msLength) * 1000L);
 			}
 		}
 		return true;
 	}
 	
 	
-	/* @todo sysex function
-	public static boolean jsFunction_sysex(Context cx, Scriptable self, Object[] data, Function func) {
+	/**
+	 * Send a SysEx message. Accepts an array, typed array or Java byte[] of
+	 * message bytes; the leading 0xF0 and trailing 0xF7 are added if missing.
+	 * Large messages may be split into chunks of chunkSize bytes sent
+	 * chunkDelayMs milliseconds apart. Returns true on success.
+	 */
+	public boolean jsFunction_writeSysex(Object data, int chunkSize, int chunkDelayMs) {
+
+		// Skip if we are not a MidiOutput device
 		if (dev == null || !(dev instanceof MidiOutput)) {
 			return false;
 		}
+
+		// Copy message bytes into the scratch buffer after a 0xF0 (unless
+		// the message already starts with one)
+		int length = 0;
+		if (data instanceof Wrapper) {
+			data = ((Wrapper)data).unwrap();
+		}
+		if (data instanceof byte[]) {
+			byte[] bytes = (byte[])data;
+			int offset = bytes.length > 0 && (bytes[0] & 0xFF) == SysexMessage.SYSTEM_EXCLUSIVE ? 0 : 1;
+			ensureSysexCapacity(bytes.length + 2);
+			System.arraycopy(bytes, 0, sysexBuffer, offset, bytes.length);
+			length = bytes.length + offset;
+		}
+		else if (data instanceof Scriptable) {
+			Scriptable array = (Scriptable)data;
+			int n = (int)Context.toNumber(ScriptableObject.getProperty(array, "length"));
+			int offset = n > 0 && (ScriptRuntime.toInt32(ScriptableObject.getProperty(array, 0)) & 0xFF) == SysexMessage.SYSTEM_EXCLUSIVE ? 0 : 1;
+			ensureSysexCapacity(n + 2);
+			for (int i = 0; i < n; i++) {
+				sysexBuffer[offset + i] = (byte)ScriptRuntime.toInt32(ScriptableObject.getProperty(array, i));
+			}
+			length = n + offset;
+		}
+		else {
+			return false;
+		}
+		sysexBuffer[0] = (byte)SysexMessage.SYSTEM_EXCLUSIVE;
+
+		// Terminate with 0xF7 if missing
+		if (length < 2 || (sysexBuffer[length - 1] & 0xFF) != ShortMessage.END_OF_EXCLUSIVE) {
+			sysexBuffer[length++] = (byte)ShortMessage.END_OF_EXCLUSIVE;
+		}
+
 		try {
-			SysexMessage sm = new SysexMessage();
-			sm.setMessage((byte[])data, data.length);
-			((MidiOutput)dev).send(sm);
+			((MidiOutput)dev).writeSysex(sysexBuffer, length, chunkSize, chunkDelayMs);
 		}
 		catch (InvalidMidiDataException e) {
 			return false;
 		}
 		return true;
 	}
-	*/
 	
+	/**
+	 * Sets which incoming messages are passed on (see MidiInputFilter).
+	 * Returns false if this is not a MIDI input.
+	 */
+	public boolean jsFunction_filter(String spec) {
+		if (dev == null || !(dev instanceof MidiInput)) {
+			return false;
+		}
+		((MidiInput)dev).setFilter(MidiInputFilter.parse(spec));
+		return true;
+	}
+
+	/**
+	 * Enables or disables coalescing of control change and pitch bend
+	 * messages, which keeps only the last value per controller written during
+	 * a tick (see MidiOutput.setCoalescing). Returns false if this is not a
+	 * MIDI output.
+	 */
+	public boolean jsFunction_coalesce(boolean coalescing) {
+		if (dev == null || !(dev instanceof MidiOutput)) {
+			return false;
+		}
+		try {
+			((MidiOutput)dev).setCoalescing(coalescing);
+		}
+		catch (InvalidMidiDataException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets whether lookahead messages are timestamped for the device (true,
+	 * the default) or held back until due (false), for devices that ignore
+	 * timestamps. Returns false if this is not a MIDI output.
+	 */
+	public boolean jsFunction_timestamps(boolean timestamping) {
+		if (dev == null || !(dev instanceof MidiOutput)) {
+			return false;
+		}
+		((MidiOutput)dev).setTimestamping(timestamping);
+		return true;
+	}
+
+	/**
+	 * Enables pacing with a maximum wire backlog in milliseconds, or disables
+	 * it if budgetMs is 0 (see MidiOutput.setPacing). Returns false if this
+	 * is not a MIDI output.
+	 */
+	public boolean jsFunction_pace(double budgetMs) {
+		if (dev == null || !(dev instanceof MidiOutput)) {
+			return false;
+		}
+		((MidiOutput)dev).setPacing((long)(budgetMs * 1000));
+		return true;
+	}
+
+	/**
+	 * Returns the number of messages dropped by pacing on an output, or by
+	 * the filter on an input
+	 */
+	public double jsFunction_getDroppedCount() {
+		if (dev instanceof MidiOutput) {
+			return ((MidiOutput)dev).getDroppedCount();
+		}
+		else if (dev instanceof MidiInput) {
+			return ((MidiInput)dev).getDroppedCount();
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of messages sent late by pacing, or 0 if this is not
+	 * a MIDI output
+	 */
+	public double jsFunction_getLateCount() {
+		if (dev == null || !(dev instanceof MidiOutput)) {
+			return 0;
+		}
+		return ((MidiOutput)dev).getLateCount();
+	}
+
+	/**
+	 * Sends control change and pitch bend messages held back by coalescing,
+	 * for the deadline of the tick being handled by the script loop if any
+	 * (see ScriptLoop.getDueNanos())
+	 */
+	public void flush() {
+		flush(false);
+	}
+
+	/**
+	 * Sends control change and pitch bend messages held back by coalescing,
+	 * right away or for the deadline of the tick being played
+	 */
+	private void flush(boolean atTick) {
+		if (dev == null || !(dev instanceof MidiOutput) || !((MidiOutput)dev).isCoalescing()) {
+			return;
+		}
+		try {
+			if (atTick) {
+				((MidiOutput)dev).flush(tickNanos);
+			}
+			else {
+				((MidiOutput)dev).flush(ScriptLoop.getInstance().getDueNanos());
+			}
+		}
+		catch (InvalidMidiDataException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Grows the SysEx scratch buffer to hold at least capacity bytes
+	 */
+	private void ensureSysexCapacity(int capacity) {
+		if (sysexBuffer.length < capacity) {
+			sysexBuffer = new byte[Math.max(capacity, sysexBuffer.length * 2)];
+		}
+	}
+
+	/**
+	 * Sets the tempo of a virtual clock device (see VirtualMidiDevice) in
+	 * beats per minute. Returns false if this is not a virtual clock.
+	 */
+	public boolean jsFunction_setClockTempo(double bpm) {
+		if (dev == null || !(dev.device instanceof VirtualMidiDevice) || !((VirtualMidiDevice)dev.device).isClock()) {
+			return false;
+		}
+		((VirtualMidiDevice)dev.device).setClockTempo(bpm);
+		return true;
+	}
+
 	/**
 	 * Returns name of underlying MIDI device
 	 */
@@ -131,88 +435,70 @@ public class MidiIoObject extends ScriptableObject implements Scriptable, InkClo
 	 */
 	public void onTick(long tick) {
 		
-		// Update tick value
+		// Update tick value and deadline
 		this.tick = tick;
+		this.tickNanos = clock.getTickNanos();
 		
-		// Continually pop notes off the queue and send them off if they are due
-		// Note: This can technically benefit from synchronized code but I'm willing
-		//       to sacrifice 100% reliability for simplicity, speed, and not
-		//       holding up other sequencing events.
-		while (!noteQueue.isEmpty() && noteQueue.getFirst().getTick() <= tick) {
+		// Continually pop notes off the queue and send them off if they are due.
+		// The lock is only held while polling so that sending never holds up
+		// scripts scheduling new notes.
+		int msg;
+		while (true) {
+			synchronized (noteQueue) {
+				if (noteQueue.isEmpty() || noteQueue.peekKey() > tick) {
+					break;
+				}
+				msg = noteQueue.poll();
+				noteQueueDepth = noteQueue.size();
+			}
 			try {
-				((MidiOutput)dev).writeShort(noteQueue.removeFirst().toShortMessage());
+				((MidiOutput)dev).writePacked(msg, tickNanos);
 			}
 			catch (InvalidMidiDataException e) {
 				continue;
 			}
 		}
 		
+		// Play patterns
+		PatternObject[] current = patterns;
+		for (int i = 0; i < current.length; i++) {
+			current[i].onTick(tick);
+		}
+		
+		// Send anything held back by coalescing since the last tick
+		flush(true);
+		
+	}
+
+	/**
+	 * Invoked when the sequencer stops or pauses. Sends note-offs still
+	 * waiting for their tick right away so no notes hang. When rendering
+	 * offline, they land on the final tick.
+	 */
+	public void onStop(long tick) {
+		if (dev == null || !(dev instanceof MidiOutput)) {
+			return;
+		}
+		int msg;
+		while (true) {
+			synchronized (noteQueue) {
+				if (noteQueue.isEmpty()) {
+					break;
+				}
+				msg = noteQueue.poll();
+				noteQueueDepth = noteQueue.size();
+			}
+			try {
+				((MidiOutput)dev).writePacked(msg);
+			}
+			catch (InvalidMidiDataException e) {
+				continue;
+			}
+		}
 	}
 
-	public void onStop(long tick) { }
 	public void onStart(long tick) { }
 	public void onContinue(long tick) { }
 	public void onQuarterNote(long tick) { }
 
-}
-
-/**
- * Simple struct of a MIDI message that is meant to be sent at a certain tick 
- */
-class ScheduledMidiMessage {
-	
-	private long tick;
-	private int command;
-	private int channel;
-	private int data1;
-	private int data2;
-	
-	public ScheduledMidiMessage(long tick, int command, int channel, int data1, int data2) {
-		this.tick = tick;
-		this.command = command;
-		this.channel = channel;
-		this.data1 = data1;
-		this.data2 = data2;
-	}
-	
-	public long getTick() {
-		return this.tick;
-	}	
-	
-	public ShortMessage toShortMessage() throws InvalidMidiDataException {
-		ShortMessage m = new ShortMessage();
-		m.setMessage(this.command, this.channel, this.data1, this.data2);
-		return m;
-	}
-	
-}
-
-
-/**
- * Threaded MIDI message executor 
- */
-class DelayedMidiMessage implements Runnable {
-	
-	private MidiOutput output;
-	private int command;
-	private int channel;
-	private int data1;
-	private int data2;
-
-	public DelayedMidiMessage(MidiOutput output, int command, int channel, int data1, int data2) {
-		this.output = output;
-		this.command = command;
-		this.channel = channel;
-		this.data1 = data1;
-		this.data2 = data2;
-	}
-
-	public void run() {
-		try {
-			output.writeShort(command, channel, data1, data2);
-		}
-		catch (InvalidMidiDataException e) {
-		}
-	}
-	
 }
\ No newline at end of file
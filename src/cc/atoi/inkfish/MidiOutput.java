@@ -1,5 +1,6 @@
 package cc.atoi.inkfish;
 
+import java.util.concurrent.atomic.AtomicLong;
 import javax.sound.midi.*;
 
 /**
@@ -8,10 +9,202 @@ import javax.sound.midi.*;
  */
 public class MidiOutput extends MidiIo {
 
+	/**
+	 * Time it takes to transmit one byte over a 31.25 kbaud MIDI cable (10
+	 * bits per byte) in nanoseconds
+	 */
+	public static final long BYTE_NANOS = 320000L;
+
+	/**
+	 * Messages due less than this many nanoseconds in the future are sent
+	 * right away rather than timestamped or scheduled
+	 */
+	static final long LOOKAHEAD_MIN_NANOS = 200000L;
+
+	/**
+	 * Due time of messages that are sent right away rather than for a tick
+	 * deadline. They are measured against the deadline of the sequencer's
+	 * current tick.
+	 */
+	static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	/**
+	 * Number of keys returned by shedKey(): control changes and polyphonic
+	 * pressure per channel and data1, then pitch bend and channel pressure
+	 * per channel
+	 */
+	private static final int SHED_KEYS = 2 * 16 * 128 + 2 * 16;
+
 	/**
 	 * Device that we want to output MIDI to
 	 */
-	private Receiver receiver;
+	protected Receiver receiver;
+
+	/**
+	 * Reusable message for each thread that writes short messages, so short
+	 * messages are sent without allocating. This assumes receivers are done
+	 * with a message when send() returns and copy it if they keep it.
+	 */
+	private static final ThreadLocal<ShortMessage> shortMessages = new ThreadLocal<ShortMessage>() {
+		protected ShortMessage initialValue() {
+			return new ShortMessage();
+		}
+	};
+
+	/**
+	 * Reusable message for SysEx writes that are sent right away. Also
+	 * guards sysexChunk.
+	 */
+	private final SysexMessage sysexMessage = new SysexMessage();
+
+	/**
+	 * Reusable buffer for SysEx continuation chunks that are sent right away
+	 */
+	private byte[] sysexChunk = new byte[0];
+
+	/**
+	 * Whether control change and pitch bend writes are held back until
+	 * flush() so that only the last value per controller is sent
+	 */
+	private volatile boolean coalescing = false;
+
+	/**
+	 * Held back message (packed by pack()) for each controller of each
+	 * channel (channel * 128 + controller) and for pitch bend of each channel
+	 * (2048 + channel), or 0 if none. Guarded by itself.
+	 */
+	private final int[] coalesced = new int[16 * 128 + 16];
+
+	/**
+	 * Keys of held back messages in the order they were first written
+	 */
+	private final int[] coalescedKeys = new int[16 * 128 + 16];
+
+	/**
+	 * Number of held back messages
+	 */
+	private int coalescedCount = 0;
+
+	/**
+	 * Bit mask of channels that have held back messages. Written while
+	 * holding coalesced; read without it to skip flushing channels that
+	 * have nothing held.
+	 */
+	private volatile int heldChannels = 0;
+
+	/**
+	 * Held back messages taken out by flush() for sending. Also serializes
+	 * flushes.
+	 */
+	private final int[] flushing = new int[16 * 128 + 16];
+
+	/**
+	 * Reusable message for sending held back messages. Guarded by flushing.
+	 */
+	private final ShortMessage flushMessage = new ShortMessage();
+
+	/**
+	 * Whether messages written for a tick deadline are sent ahead of time
+	 * rather than right away
+	 */
+	private volatile boolean lookahead = false;
+
+	/**
+	 * Whether lookahead messages are timestamped for the device (if it has a
+	 * microsecond position) rather than held back on the MidiScheduler
+	 */
+	private volatile boolean timestamping = true;
+
+	/**
+	 * Maximum backlog of modeled wire time in nanoseconds before messages are
+	 * dropped or counted as late, or 0 if pacing is disabled
+	 */
+	private volatile long paceBudgetNanos = 0;
+
+	/**
+	 * Guards the wire model
+	 */
+	private final Object wireLock = new Object();
+
+	/**
+	 * Time at which the modeled wire will have transmitted every message sent
+	 * so far, in System.nanoTime() nanoseconds
+	 */
+	private long wireFreeNanos = 0;
+
+	/**
+	 * Status byte the receiving device may assume for a message without one
+	 * (running status), or 0 if none
+	 */
+	private int runningStatus = 0;
+
+	/**
+	 * Latest value (packed by pack()) shed by pacing for each key returned by
+	 * shedKey(), or 0 if none. Guarded by wireLock.
+	 */
+	private final int[] shedValues = new int[SHED_KEYS];
+
+	/**
+	 * Whether each key is listed in shedKeys. Guarded by wireLock.
+	 */
+	private final boolean[] shedQueued = new boolean[SHED_KEYS];
+
+	/**
+	 * Keys of shed values in the order they were first shed. Guarded by
+	 * wireLock.
+	 */
+	private final int[] shedKeys = new int[SHED_KEYS];
+
+	/**
+	 * Number of keys in shedKeys. Guarded by wireLock.
+	 */
+	private int shedCount = 0;
+
+	/**
+	 * Whether resendShed is waiting on the MidiScheduler. Guarded by
+	 * wireLock.
+	 */
+	private boolean resendScheduled = false;
+
+	/**
+	 * Shed values taken out for resending (MidiScheduler thread only)
+	 */
+	private final int[] resending = new int[SHED_KEYS];
+
+	/**
+	 * Resends the latest shed values once the wire has freed up
+	 */
+	private final Runnable resendShed = new Runnable() {
+		public void run() {
+			resendShed();
+		}
+	};
+
+	/**
+	 * Number of messages dropped by pacing
+	 */
+	private volatile long droppedCount = 0;
+
+	/**
+	 * Number of messages sent by pacing despite exceeding the budget
+	 */
+	private volatile long lateCount = 0;
+
+	/**
+	 * Histogram of how late messages reach the receiver, or null if not
+	 * measured
+	 */
+	private volatile LatencyHistogram sendStats = null;
+
+	/**
+	 * Sequencer whose tick deadlines messages are measured against
+	 */
+	private volatile InkClock statsClock = null;
+
+	/**
+	 * Number of messages sent to the receiver
+	 */
+	private final AtomicLong sentCount = new AtomicLong(0);
 
 	/**
 	 * Initializes a MIDI output port via a MidiDevice instance
@@ -22,6 +215,12 @@ public class MidiOutput extends MidiIo {
 		receiver = this.device.getReceiver();
 	}
 
+	/**
+	 * Initializes a MIDI output port without a device. Subclasses must set
+	 * the receiver.
+	 */
+	protected MidiOutput() { }
+
 	/**
 	 * Send a MIDI message immediately.
 	 */
@@ -31,17 +230,71 @@ public class MidiOutput extends MidiIo {
 	
 	/**
 	 * Send a MIDI message with timestamp (only works if target device support
-	 * timestamping).
+	 * timestamping). If pacing is enabled, the message may be dropped.
 	 */
 	public void send(MidiMessage msg, long ts) {
+		send(msg, ts, NO_DEADLINE);
+	}
+
+	/**
+	 * Send a MIDI message with timestamp, recording how late it is if
+	 * measured
+	 * @param dueNanos	time the message is due in System.nanoTime() units,
+	 * 					or NO_DEADLINE for the deadline of the current tick
+	 */
+	private void send(MidiMessage msg, long ts, long dueNanos) {
+		if (paceBudgetNanos > 0 && !pace(msg)) {
+			return;
+		}
+		LatencyHistogram h = sendStats;
+		if (h != null) {
+			h.record(System.nanoTime() - (dueNanos == NO_DEADLINE ? statsClock.getTickNanos() : dueNanos));
+		}
+		sentCount.incrementAndGet();
 		receiver.send(msg, ts);
 	}
 
 	/**
-	 * Send a 3-byte ("short") MIDI message 
+	 * Send a 3-byte ("short") MIDI message right away
 	 */
 	public void writeShort(ShortMessage smsg) throws InvalidMidiDataException {
-		receiver.send(smsg, -1);
+		writeShort(smsg, NO_DEADLINE);
+	}
+
+	/**
+	 * Send a 3-byte ("short") MIDI message for a tick deadline. With
+	 * lookahead, the message is timestamped or held back until the deadline;
+	 * otherwise it is sent right away.
+	 * @param dueNanos	deadline in System.nanoTime() units (see
+	 * 					InkClock.getTickNanos())
+	 */
+	public void writeShort(ShortMessage smsg, long dueNanos) throws InvalidMidiDataException {
+		// Held back values for the channel go first so that the message is
+		// not overtaken by values written before it
+		if (smsg.getStatus() < 0xF0 && (heldChannels & (1 << smsg.getChannel())) != 0) {
+			flush(smsg.getChannel(), dueNanos);
+		}
+		sendShort(smsg, dueNanos);
+	}
+
+	/**
+	 * Sends a short message for a tick deadline, bypassing coalescing
+	 */
+	private void sendShort(ShortMessage smsg, long dueNanos) throws InvalidMidiDataException {
+		if (lookahead && dueNanos != NO_DEADLINE) {
+			long ahead = dueNanos - System.nanoTime();
+			if (ahead > LOOKAHEAD_MIN_NANOS) {
+				long position = timestamping ? device.getMicrosecondPosition() : -1;
+				if (position >= 0) {
+					send(smsg, position + ahead / 1000, dueNanos);
+				}
+				else {
+					MidiScheduler.getInstance().schedule(this, pack(smsg.getCommand(), smsg.getChannel(), smsg.getData1(), smsg.getData2()), ahead / 1000);
+				}
+				return;
+			}
+		}
+		send(smsg, -1, dueNanos);
 	}
 
 	
@@ -53,9 +306,544 @@ public class MidiOutput extends MidiIo {
 	 * @param data2		3rd message byte
 	 */
 	public void writeShort(int command, int channel, int data1, int data2) throws InvalidMidiDataException {
-		ShortMessage smsg = new ShortMessage();
-		smsg.setMessage(command, channel, data1, data2);
-		writeShort(smsg);
+		writeShort(command, channel, data1, data2, NO_DEADLINE);
+	}
+
+	/**
+	 * Send a 3-byte ("short") MIDI message by specifying its values, for a
+	 * tick deadline (see writeShort(ShortMessage, long))
+	 * @param command	MIDI command / status (note on, note off, control change)
+	 * @param channel	target MIDI channel
+	 * @param data1		2nd message byte
+	 * @param data2		3rd message byte
+	 * @param dueNanos	deadline in System.nanoTime() units
+	 */
+	public void writeShort(int command, int channel, int data1, int data2, long dueNanos) throws InvalidMidiDataException {
+		if (coalescing && coalesce(command, channel, data1, data2)) {
+			return;
+		}
+		ShortMessage smsg = shortMessages.get();
+		if (command >= 0xF0) {
+			// System messages have no channel
+			smsg.setMessage(command, data1, data2);
+		}
+		else {
+			smsg.setMessage(command, channel, data1, data2);
+		}
+		writeShort(smsg, dueNanos);
+	}
+
+	/**
+	 * Send a 3-byte ("short") MIDI message packed into an int by pack()
+	 * @param msg packed message
+	 */
+	public void writePacked(int msg) throws InvalidMidiDataException {
+		writePacked(msg, NO_DEADLINE);
+	}
+
+	/**
+	 * Send a 3-byte ("short") MIDI message packed into an int by pack(), for
+	 * a tick deadline (see writeShort(ShortMessage, long))
+	 * @param msg		packed message
+	 * @param dueNanos	deadline in System.nanoTime() units
+	 */
+	public void writePacked(int msg, long dueNanos) throws InvalidMidiDataException {
+		ShortMessage smsg = shortMessages.get();
+		smsg.setMessage(msg & 0xFF, (msg >> 8) & 0xFF, (msg >> 16) & 0xFF);
+		writeShort(smsg, dueNanos);
+	}
+
+	/**
+	 * Enables or disables lookahead. While enabled, short messages written
+	 * for a tick deadline (by the sequencer ticking ahead of time, see
+	 * InkClockInternalThread.setLookahead()) are not sent right away. If the
+	 * device reports a microsecond position, they are sent with a matching
+	 * timestamp; otherwise they are held back on the MidiScheduler until the
+	 * deadline. Messages written without a deadline are always sent right
+	 * away.
+	 */
+	public void setLookahead(boolean lookahead) {
+		this.lookahead = lookahead;
+	}
+
+	/**
+	 * Returns true if lookahead is enabled
+	 */
+	public boolean isLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * Sends a message held back by the MidiScheduler (packed by pack()) now
+	 * that it is due
+	 * @param msg		packed message
+	 * @param dueNanos	time the message was due in System.nanoTime() units
+	 */
+	void writeScheduled(int msg, long dueNanos) throws InvalidMidiDataException {
+		ShortMessage smsg = shortMessages.get();
+		smsg.setMessage(msg & 0xFF, (msg >> 8) & 0xFF, (msg >> 16) & 0xFF);
+		send(smsg, -1, dueNanos);
+	}
+
+	/**
+	 * Measures how late messages reach the receiver: against the deadline of
+	 * the sequencer's current tick, or against their own deadline if held
+	 * back by the MidiScheduler. Messages timestamped ahead of time count as
+	 * 0.
+	 * @param sendStats	histogram to record into, or null to stop measuring
+	 * @param clock		sequencer
+	 */
+	public void setStats(LatencyHistogram sendStats, InkClock clock) {
+		this.statsClock = clock;
+		this.sendStats = sendStats;
+	}
+
+	/**
+	 * Returns the histogram recording how late messages reach the receiver,
+	 * or null if not measured
+	 */
+	public LatencyHistogram getStats() {
+		return sendStats;
+	}
+
+	/**
+	 * Sets whether lookahead messages are timestamped for devices that report
+	 * a microsecond position. Disable for devices that report a position but
+	 * ignore timestamps.
+	 */
+	public void setTimestamping(boolean timestamping) {
+		this.timestamping = timestamping;
+	}
+
+	/**
+	 * Returns true if lookahead messages are timestamped when possible
+	 */
+	public boolean isTimestamping() {
+		return timestamping;
+	}
+
+	/**
+	 * Enables or disables coalescing. While enabled, control change and pitch
+	 * bend messages written by writeShort(int, int, int, int) are held back
+	 * until flush(), keeping only the last value per channel and controller.
+	 * Other messages (notes in particular) are sent right away and in order;
+	 * values held back for their channel are sent before them. Bank select,
+	 * data entry, RPN / NRPN and channel mode controllers (0, 32, 6, 38,
+	 * 96-101 and 120-127) depend on the order they are sent in and are
+	 * never held back. Disabling coalescing flushes held back messages.
+	 */
+	public void setCoalescing(boolean coalescing) throws InvalidMidiDataException {
+		this.coalescing = coalescing;
+		if (!coalescing) {
+			flush();
+		}
+	}
+
+	/**
+	 * Returns true if coalescing is enabled
+	 */
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	/**
+	 * Sends messages held back by coalescing right away in the order they
+	 * were first written. Safe to call from several threads at once; each
+	 * held back message is sent once.
+	 */
+	public void flush() throws InvalidMidiDataException {
+		flush(NO_DEADLINE);
+	}
+
+	/**
+	 * Sends messages held back by coalescing for a tick deadline (see
+	 * writeShort(ShortMessage, long)). Meant to be called at the end of each
+	 * tick.
+	 * @param dueNanos	deadline in System.nanoTime() units
+	 */
+	public void flush(long dueNanos) throws InvalidMidiDataException {
+		flush(-1, dueNanos);
+	}
+
+	/**
+	 * Sends messages held back for one channel, or for every channel if
+	 * channel is -1, in the order they were first written
+	 */
+	private void flush(int channel, long dueNanos) throws InvalidMidiDataException {
+		synchronized (flushing) {
+
+			// Take the channel's held back messages out at once, keeping the
+			// order of the rest
+			int count = 0;
+			synchronized (coalesced) {
+				int kept = 0;
+				for (int i = 0; i < coalescedCount; i++) {
+					int key = coalescedKeys[i];
+					if (channel < 0 || channelOf(key) == channel) {
+						flushing[count++] = coalesced[key];
+						coalesced[key] = 0;
+					}
+					else {
+						coalescedKeys[kept++] = key;
+					}
+				}
+				coalescedCount = kept;
+				heldChannels = channel < 0 ? 0 : heldChannels & ~(1 << channel);
+			}
+
+			for (int i = 0; i < count; i++) {
+				int msg = flushing[i];
+				flushMessage.setMessage(msg & 0xFF, (msg >> 8) & 0xFF, (msg >> 16) & 0xFF);
+				sendShort(flushMessage, dueNanos);
+			}
+		}
+	}
+
+	/**
+	 * Returns the channel of a key into coalesced
+	 */
+	private static int channelOf(int key) {
+		return key < 2048 ? key >> 7 : key - 2048;
+	}
+
+	/**
+	 * Holds back a control change or pitch bend message, replacing any held
+	 * back value for the same channel and controller. Returns false if the
+	 * message is of another type, or a controller whose order matters, and
+	 * should be sent right away.
+	 */
+	private boolean coalesce(int command, int channel, int data1, int data2) {
+		int key;
+		if (command == ShortMessage.CONTROL_CHANGE) {
+			if (isOrdered(data1 & 0x7F)) {
+				return false;
+			}
+			key = ((channel & 0x0F) << 7) | (data1 & 0x7F);
+		}
+		else if (command == ShortMessage.PITCH_BEND) {
+			key = 2048 + (channel & 0x0F);
+		}
+		else {
+			return false;
+		}
+		synchronized (coalesced) {
+			if (coalesced[key] == 0) {
+				coalescedKeys[coalescedCount++] = key;
+			}
+			coalesced[key] = pack(command, channel, data1, data2);
+			heldChannels |= 1 << (channel & 0x0F);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true for controllers whose values only make sense in the order
+	 * they were sent: bank select, data entry, RPN / NRPN and channel mode
+	 */
+	private static boolean isOrdered(int controller) {
+		switch (controller) {
+			case 0: case 32:
+			case 6: case 38:
+				return true;
+			default:
+				return (controller >= 96 && controller <= 101) || controller >= 120;
+		}
+	}
+
+	/**
+	 * Enables or disables pacing. While enabled, the time each message takes
+	 * on a 31.25 kbaud MIDI cable is modeled (counting the bytes saved by
+	 * running status). When a burst of messages would build up more than
+	 * budgetMicros of backlog on the wire, continuous controller messages
+	 * (control change, pressure and pitch bend) are held back so that notes
+	 * go out sooner. Only the latest held back value of each controller is
+	 * kept, and it is sent once the wire has freed up, so a sweep loses
+	 * intermediate values but always ends on its final value. Other messages
+	 * are still sent but counted as late.
+	 * @param budgetMicros	maximum backlog in microseconds, or 0 to disable
+	 */
+	public void setPacing(long budgetMicros) {
+		synchronized (wireLock) {
+			wireFreeNanos = System.nanoTime();
+			runningStatus = 0;
+			paceBudgetNanos = budgetMicros * 1000;
+		}
+	}
+
+	/**
+	 * Returns the pacing budget in microseconds, or 0 if pacing is disabled
+	 */
+	public long getPacing() {
+		return paceBudgetNanos / 1000;
+	}
+
+	/**
+	 * Returns the number of messages sent to the receiver
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * Returns the number of messages dropped by pacing (held back controller
+	 * values that were replaced by a newer value before they could be sent)
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Returns the number of messages sent by pacing despite exceeding the
+	 * budget
+	 */
+	public long getLateCount() {
+		return lateCount;
+	}
+
+	/**
+	 * Adds a message to the wire model. Returns false if the message should
+	 * not be sent now; shed controller values are kept for resendShed().
+	 */
+	private boolean pace(MidiMessage msg) {
+		int status = msg.getStatus();
+		int length = msg.getLength();
+		int key = shedKey(msg);
+		long now = System.nanoTime();
+		long resendDelayMicros;
+		synchronized (wireLock) {
+			if (status < 0xF0 && status == runningStatus) {
+				length--;
+			}
+			long end = Math.max(now, wireFreeNanos) + length * BYTE_NANOS;
+			boolean overBudget = end - now > paceBudgetNanos;
+			if (overBudget && key >= 0) {
+				shed(key, (ShortMessage)msg);
+				if (resendScheduled) {
+					return false;
+				}
+				resendScheduled = true;
+				resendDelayMicros = Math.max(wireFreeNanos - now, 0) / 1000;
+			}
+			else {
+				if (overBudget) {
+					lateCount++;
+				}
+				else if (key >= 0 && shedValues[key] != 0) {
+					// This value supersedes the shed one
+					shedValues[key] = 0;
+					droppedCount++;
+				}
+				wireFreeNanos = end;
+				if (status < 0xF0) {
+					runningStatus = status;
+				}
+				else if (status < 0xF8) {
+					// System common messages cancel running status; real-time
+					// messages leave it alone
+					runningStatus = 0;
+				}
+				return true;
+			}
+		}
+		MidiScheduler.getInstance().schedule(resendShed, resendDelayMicros);
+		return false;
+	}
+
+	/**
+	 * Keeps a controller value that did not fit on the wire, replacing any
+	 * older value of the same controller. Only called while holding wireLock.
+	 */
+	private void shed(int key, ShortMessage smsg) {
+		if (shedValues[key] != 0) {
+			droppedCount++;
+		}
+		shedValues[key] = pack(smsg.getCommand(), smsg.getChannel(), smsg.getData1(), smsg.getData2());
+		if (!shedQueued[key]) {
+			shedQueued[key] = true;
+			shedKeys[shedCount++] = key;
+		}
+	}
+
+	/**
+	 * Sends the latest shed value of each controller in the order they were
+	 * first shed. Runs on the MidiScheduler thread once the wire has freed
+	 * up; values that still do not fit are shed again.
+	 */
+	private void resendShed() {
+		int count = 0;
+		synchronized (wireLock) {
+			for (int i = 0; i < shedCount; i++) {
+				int key = shedKeys[i];
+				if (shedValues[key] != 0) {
+					resending[count++] = shedValues[key];
+				}
+				shedValues[key] = 0;
+				shedQueued[key] = false;
+			}
+			shedCount = 0;
+			resendScheduled = false;
+		}
+		ShortMessage smsg = shortMessages.get();
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			int msg = resending[i];
+			try {
+				smsg.setMessage(msg & 0xFF, (msg >> 8) & 0xFF, (msg >> 16) & 0xFF);
+			}
+			catch (InvalidMidiDataException e) {
+				continue;
+			}
+			send(smsg, -1, now);
+		}
+	}
+
+	/**
+	 * Returns the key under which pacing keeps the latest value of a message
+	 * when the wire is backed up, or -1 if the message may not be shed. Control
+	 * changes (except channel mode messages), pressure and pitch bend may be
+	 * shed.
+	 */
+	private static int shedKey(MidiMessage msg) {
+		if (!(msg instanceof ShortMessage)) {
+			return -1;
+		}
+		ShortMessage smsg = (ShortMessage)msg;
+		int channel = smsg.getChannel();
+		switch (smsg.getCommand()) {
+			case ShortMessage.CONTROL_CHANGE:
+				return smsg.getData1() < 120 ? (channel << 7) | smsg.getData1() : -1;
+			case ShortMessage.POLY_PRESSURE:
+				return 16 * 128 + ((channel << 7) | smsg.getData1());
+			case ShortMessage.PITCH_BEND:
+				return 2 * 16 * 128 + channel;
+			case ShortMessage.CHANNEL_PRESSURE:
+				return 2 * 16 * 128 + 16 + channel;
+		}
+		return -1;
+	}
+
+	/**
+	 * Send a 3-byte ("short") MIDI message after a delay
+	 * @param msg			message packed by pack()
+	 * @param delayMicros	delay in microseconds
+	 */
+	public void schedule(int msg, long delayMicros) {
+		MidiScheduler.getInstance().schedule(this, msg, delayMicros);
+	}
+
+	/**
+	 * Send a complete SysEx message (starting with 0xF0 and ending with 0xF7)
+	 * @param data		buffer holding the message
+	 * @param length	length of the message in bytes
+	 */
+	public void writeSysex(byte[] data, int length) throws InvalidMidiDataException {
+		writeSysex(data, length, 0, 0);
+	}
+
+	/**
+	 * Send a complete SysEx message (starting with 0xF0 and ending with 0xF7),
+	 * optionally split into chunks with a pause after each chunk so that
+	 * slow devices do not overflow their receive buffers. The first chunk is
+	 * sent as a regular SysEx message and the rest as continuation messages
+	 * (status 0xF7). Paced chunks are sent from the MidiScheduler thread and
+	 * this method returns right away.
+	 * @param data			buffer holding the message; not retained
+	 * @param length		length of the message in bytes
+	 * @param chunkSize		maximum bytes per chunk, or 0 to send in one piece
+	 * @param chunkDelayMs	pause after each chunk in milliseconds, or 0
+	 */
+	public void writeSysex(byte[] data, int length, int chunkSize, int chunkDelayMs) throws InvalidMidiDataException {
+		if (length < 2 || (data[0] & 0xFF) != SysexMessage.SYSTEM_EXCLUSIVE || (data[length - 1] & 0xFF) != ShortMessage.END_OF_EXCLUSIVE) {
+			throw new InvalidMidiDataException("SysEx message must start with 0xF0 and end with 0xF7");
+		}
+		if (chunkSize <= 0 || chunkSize >= length) {
+			synchronized (sysexMessage) {
+				sysexMessage.setMessage(data, length);
+				send(sysexMessage, -1);
+			}
+		}
+		else if (chunkDelayMs > 0) {
+			byte[] copy = new byte[length];
+			System.arraycopy(data, 0, copy, 0, length);
+			new SysexTransfer(this, copy, chunkSize, chunkDelayMs * 1000L).run();
+		}
+		else {
+			synchronized (sysexMessage) {
+				for (int offset = 0; offset < length; offset += chunkSize) {
+					int n = Math.min(chunkSize, length - offset);
+					if (offset == 0) {
+						sysexMessage.setMessage(data, n);
+					}
+					else {
+						if (sysexChunk.length < n + 1) {
+							sysexChunk = new byte[n + 1];
+						}
+						sysexChunk[0] = (byte)ShortMessage.END_OF_EXCLUSIVE;
+						System.arraycopy(data, offset, sysexChunk, 1, n);
+						sysexMessage.setMessage(sysexChunk, n + 1);
+					}
+					send(sysexMessage, -1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Packs a 3-byte ("short") MIDI message into an int. The status byte is
+	 * stored in the lowest 8 bits, followed by data1 and data2.
+	 * @param command	MIDI command / status (note on, note off, control change)
+	 * @param channel	target MIDI channel
+	 * @param data1		2nd message byte
+	 * @param data2		3rd message byte
+	 */
+	public static int pack(int command, int channel, int data1, int data2) {
+		return (command & 0xF0) | (channel & 0x0F) | ((data1 & 0xFF) << 8) | ((data2 & 0xFF) << 16);
+	}
+
+}
+
+/**
+ * Sends a SysEx message in paced chunks, rescheduling itself on the
+ * MidiScheduler after each chunk
+ */
+class SysexTransfer implements Runnable {
+
+	private MidiOutput output;
+	private byte[] data;
+	private int chunkSize;
+	private long delayMicros;
+	private int offset = 0;
+	private byte[] chunk;
+	private SysexMessage msg = new SysexMessage();
+
+	public SysexTransfer(MidiOutput output, byte[] data, int chunkSize, long delayMicros) {
+		this.output = output;
+		this.data = data;
+		this.chunkSize = chunkSize;
+		this.delayMicros = delayMicros;
+		this.chunk = new byte[chunkSize + 1];
+	}
+
+	public void run() {
+		int n = Math.min(chunkSize, data.length - offset);
+		try {
+			if (offset == 0) {
+				msg.setMessage(data, n);
+			}
+			else {
+				chunk[0] = (byte)ShortMessage.END_OF_EXCLUSIVE;
+				System.arraycopy(data, offset, chunk, 1, n);
+				msg.setMessage(chunk, n + 1);
+			}
+		}
+		catch (InvalidMidiDataException e) {
+			return;
+		}
+		output.send(msg);
+		offset += n;
+		if (offset < data.length) {
+			MidiScheduler.getInstance().schedule(this, delayMicros);
+		}
 	}
 
 }
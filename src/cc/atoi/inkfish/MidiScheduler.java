@@ -0,0 +1,203 @@
+package cc.atoi.inkfish;
+
+import java.util.Arrays;
+import javax.sound.midi.*;
+
+/**
+ * Sends short MIDI messages after a delay. A single instance with a single
+ * thread serves every MIDI output. Pending messages are stored in pooled
+ * records (parallel primitive arrays indexed by slot) ordered by their
+ * deadline in microseconds, so scheduling a message allocates nothing unless
+ * the pool has to grow. Tasks (such as paced SysEx transfers) can be
+ * scheduled the same way.
+ */
+public class MidiScheduler implements Runnable {
+
+	/**
+	 * Shared instance
+	 */
+	private static MidiScheduler instance;
+
+	/**
+	 * Slots of pending messages ordered by deadline in System.nanoTime()
+	 * microseconds
+	 */
+	private final ScheduleQueue queue = new ScheduleQueue(256);
+
+	/**
+	 * Size of queue, readable without locking
+	 */
+	private volatile int pending = 0;
+
+	/**
+	 * Target output of each slot
+	 */
+	private MidiOutput[] outputs = new MidiOutput[256];
+
+	/**
+	 * Message of each slot, packed by MidiOutput.pack()
+	 */
+	private int[] messages = new int[256];
+
+	/**
+	 * Task of each slot, or null if the slot holds a message
+	 */
+	private Runnable[] tasks = new Runnable[256];
+
+	/**
+	 * Stack of unused slots
+	 */
+	private int[] free = new int[256];
+
+	/**
+	 * Number of unused slots on the stack
+	 */
+	private int freeCount;
+
+	/**
+	 * Returns the shared instance, starting its thread on first use
+	 */
+	public static synchronized MidiScheduler getInstance() {
+		if (instance == null) {
+			instance = new MidiScheduler();
+			Thread thread = new Thread(instance, "inkfish-midi-scheduler");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+		return instance;
+	}
+
+	private MidiScheduler() {
+		for (int i = 0; i < free.length; i++) {
+			free[i] = free.length - 1 - i;
+		}
+		freeCount = free.length;
+	}
+
+	/**
+	 * Schedules a short message to be sent after a delay
+	 * @param output		output to send the message to
+	 * @param msg			message packed by MidiOutput.pack()
+	 * @param delayMicros	delay in microseconds
+	 */
+	public synchronized void schedule(MidiOutput output, int msg, long delayMicros) {
+		if (freeCount == 0) {
+			grow();
+		}
+		int slot = free[--freeCount];
+		outputs[slot] = output;
+		messages[slot] = msg;
+		queue.add(System.nanoTime() / 1000 + delayMicros, slot);
+		pending = queue.size();
+		notify();
+	}
+
+	/**
+	 * Schedules a task to be run on the scheduler thread after a delay. The
+	 * task should return quickly.
+	 * @param task			task to run
+	 * @param delayMicros	delay in microseconds
+	 */
+	public synchronized void schedule(Runnable task, long delayMicros) {
+		if (freeCount == 0) {
+			grow();
+		}
+		int slot = free[--freeCount];
+		tasks[slot] = task;
+		queue.add(System.nanoTime() / 1000 + delayMicros, slot);
+		pending = queue.size();
+		notify();
+	}
+
+	/**
+	 * Returns the number of messages and tasks waiting to be sent or run
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Invoked on the scheduler thread. Sends each message when it is due.
+	 */
+	public void run() {
+		while (true) {
+			MidiOutput output = null;
+			int msg = 0;
+			Runnable task = null;
+			long deadline;
+			synchronized (this) {
+				try {
+					while (queue.isEmpty()) {
+						wait();
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				deadline = queue.peekKey() * 1000;
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 2 * NanoTimer.SPIN_NANOS) {
+					// Far from due; wait on the monitor so an earlier message
+					// scheduled meanwhile wakes us up
+					try {
+						wait((remaining - NanoTimer.SPIN_NANOS) / 1000000);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				if (remaining <= 0) {
+					int slot = queue.poll();
+					pending = queue.size();
+					output = outputs[slot];
+					msg = messages[slot];
+					task = tasks[slot];
+					outputs[slot] = null;
+					tasks[slot] = null;
+					free[freeCount++] = slot;
+				}
+			}
+			if (task != null) {
+				try {
+					task.run();
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			if (output == null) {
+				// Nearly due; finish waiting precisely outside the monitor
+				NanoTimer.sleepUntil(deadline);
+				continue;
+			}
+			try {
+				output.writeScheduled(msg, deadline);
+			}
+			catch (InvalidMidiDataException e) {
+				continue;
+			}
+			catch (RuntimeException e) {
+				// A failing receiver must not stop delivery for every output
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Doubles the number of slots. Only called while holding the monitor.
+	 */
+	private void grow() {
+		int capacity = outputs.length * 2;
+		outputs = Arrays.copyOf(outputs, capacity);
+		messages = Arrays.copyOf(messages, capacity);
+		tasks = Arrays.copyOf(tasks, capacity);
+		free = Arrays.copyOf(free, capacity);
+		for (int i = capacity - 1; i >= capacity / 2; i--) {
+			free[freeCount++] = i;
+		}
+	}
+
+}
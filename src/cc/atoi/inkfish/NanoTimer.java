@@ -0,0 +1,38 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for absolute System.nanoTime() deadlines. Parking alone routinely
+ * overshoots by a large fraction of a millisecond, so the thread parks until
+ * shortly before the deadline and spins for the remainder.
+ */
+final class NanoTimer {
+
+	/**
+	 * Remaining time (in nanoseconds) below which we stop parking and spin
+	 */
+	static final long SPIN_NANOS = 1000000L;
+
+	private NanoTimer() { }
+
+	/**
+	 * Blocks the calling thread until System.nanoTime() reaches deadline.
+	 * Returns immediately if the deadline has already passed, and early if
+	 * the thread is interrupted.
+	 * @param deadline	absolute deadline in System.nanoTime() units
+	 */
+	static void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			LockSupport.parkNanos(remaining - SPIN_NANOS);
+		}
+		while (deadline - System.nanoTime() > 0 && !Thread.currentThread().isInterrupted()) {
+			Thread.yield();
+		}
+	}
+
+}
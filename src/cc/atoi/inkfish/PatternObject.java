@@ -0,0 +1,350 @@
+package cc.atoi.inkfish;
+
+import java.util.Random;
+import javax.sound.midi.ShortMessage;
+import org.mozilla.javascript.*;
+
+/**
+ * A step sequencer pattern for use in user scripts, e.g.
+ * <pre>
+ *     var p = new Pattern(synth, 16, "1/16");
+ *     p.set(0, 36, 127, 1, 1.0);
+ * </pre>
+ * Each step has a note, velocity (0 for a rest), length in steps and
+ * probability. The pattern is played by its MidiIoObject on every tick
+ * without calling into JavaScript. Edits are staged and take effect when the
+ * pattern wraps around to its first step, so a pattern never plays half
+ * edited.
+ */
+public class PatternObject extends ScriptableObject implements Scriptable {
+
+	/**
+	 * Required for serialization
+	 */
+	private static final long serialVersionUID = 5216842318523074717L;
+
+	/**
+	 * Output playing this pattern
+	 */
+	private MidiIoObject out;
+
+	/**
+	 * Name of the user script that created the pattern, or null if it was
+	 * created by a callback
+	 */
+	private String script;
+
+	/**
+	 * Length of a step in ticks
+	 */
+	private long stepTicks;
+
+	/**
+	 * Steps being played (clock thread only)
+	 */
+	private PatternSteps active;
+
+	/**
+	 * Steps being edited. Guarded by editLock.
+	 */
+	private PatternSteps staged;
+
+	/**
+	 * Guards staged
+	 */
+	private final Object editLock = new Object();
+
+	/**
+	 * Whether staged differs from active
+	 */
+	private volatile boolean isDirty = false;
+
+	/**
+	 * MIDI channel (0 to 15)
+	 */
+	private volatile int channel = 0;
+
+	/**
+	 * Whether steps are played
+	 */
+	private volatile boolean isMuted = false;
+
+	/**
+	 * Step played most recently, or -1
+	 */
+	private volatile int position = -1;
+
+	/**
+	 * Step to play next, or -1 to line up with the tick count on the next
+	 * step (clock thread only)
+	 */
+	private int nextStep = -1;
+
+	/**
+	 * Source of seeds for the random numbers of new patterns, or null for
+	 * unseeded random numbers. Guarded by PatternObject.class.
+	 */
+	private static Random seeds = null;
+
+	/**
+	 * Random number source for step probabilities (clock thread only)
+	 */
+	private final Random random = newRandom();
+
+	public PatternObject() { }
+
+	public String getClassName() { return "Pattern"; }
+
+	/**
+	 * Creates a pattern and starts playing it
+	 * @param out	MIDI output object to play on
+	 * @param steps	number of steps
+	 * @param rate	length of a step as a note length (e.g., "1/16", the
+	 * 				default) or number of ticks
+	 */
+	public void jsConstructor(Object out, int steps, Object rate) {
+		if (!(out instanceof MidiIoObject)) {
+			throw new IllegalArgumentException("Pattern needs a MIDI output object");
+		}
+		if (steps < 1) {
+			throw new IllegalArgumentException("Pattern must have at least one step");
+		}
+		this.out = (MidiIoObject)out;
+		this.script = ScriptLoop.getInstance().getRunningScript();
+		this.stepTicks = TickSchedulerObject.toTicks(rate == Undefined.instance || rate == null ? "1/16" : rate, this.out.getPpqn());
+		if (stepTicks < 1) {
+			throw new IllegalArgumentException("Pattern step must be at least 1 tick");
+		}
+		this.active = new PatternSteps(steps);
+		this.staged = new PatternSteps(steps);
+		this.out.addPattern(this);
+	}
+
+	/**
+	 * Sets a step
+	 * @param step			step index
+	 * @param note			note number (0 to 127)
+	 * @param velocity		velocity (1 to 127), or 0 for a rest
+	 * @param length		length in steps (may be fractional), default 1
+	 * @param probability	chance of playing (0 to 1), default 1
+	 */
+	public void jsFunction_set(int step, int note, int velocity, Object length, Object probability) {
+		synchronized (editLock) {
+			checkStep(step);
+			staged.notes[step] = note & 0x7F;
+			staged.velocities[step] = Math.max(Math.min(velocity, 127), 0);
+			staged.lengths[step] = length == Undefined.instance ? 1 : Context.toNumber(length);
+			staged.probabilities[step] = probability == Undefined.instance ? 1 : Context.toNumber(probability);
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * Makes a step a rest
+	 * @param step step index
+	 */
+	public void jsFunction_clear(int step) {
+		synchronized (editLock) {
+			checkStep(step);
+			staged.velocities[step] = 0;
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * Makes every step a rest
+	 */
+	public void jsFunction_clearAll() {
+		synchronized (editLock) {
+			for (int i = 0; i < staged.velocities.length; i++) {
+				staged.velocities[i] = 0;
+			}
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * Changes the number of steps, keeping existing steps
+	 * @param steps number of steps
+	 */
+	public void jsFunction_resize(int steps) {
+		if (steps < 1) {
+			throw new IllegalArgumentException("Pattern must have at least one step");
+		}
+		synchronized (editLock) {
+			PatternSteps resized = new PatternSteps(steps);
+			resized.copyFrom(staged);
+			staged = resized;
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * Returns the note of a step (including pending edits)
+	 */
+	public int jsFunction_getNote(int step) {
+		synchronized (editLock) {
+			checkStep(step);
+			return staged.notes[step];
+		}
+	}
+
+	/**
+	 * Returns the velocity of a step (including pending edits), 0 for a rest
+	 */
+	public int jsFunction_getVelocity(int step) {
+		synchronized (editLock) {
+			checkStep(step);
+			return staged.velocities[step];
+		}
+	}
+
+	/**
+	 * Sets the MIDI channel (0 to 15)
+	 */
+	public void jsFunction_setChannel(int channel) {
+		this.channel = channel & 0x0F;
+	}
+
+	/**
+	 * Silences or unsilences the pattern without stopping it
+	 */
+	public void jsFunction_mute(boolean isMuted) {
+		this.isMuted = isMuted;
+	}
+
+	/**
+	 * Starts playing the pattern if it was stopped
+	 */
+	public void jsFunction_start() {
+		nextStep = -1;
+		out.addPattern(this);
+	}
+
+	/**
+	 * Stops playing the pattern
+	 */
+	public void jsFunction_stop() {
+		out.removePattern(this);
+	}
+
+	/**
+	 * Seeds the step probabilities of patterns created from now on, so they
+	 * play the same steps every run as long as the patterns are created in
+	 * the same order
+	 * @param seed seed
+	 */
+	public static synchronized void setSeed(long seed) {
+		seeds = new Random(seed);
+	}
+
+	/**
+	 * Returns a random number source, seeded if setSeed() was called
+	 */
+	private static synchronized Random newRandom() {
+		return seeds == null ? new Random() : new Random(seeds.nextLong());
+	}
+
+	/**
+	 * Returns the name of the user script that created the pattern, or null
+	 */
+	String getScript() {
+		return script;
+	}
+
+	/**
+	 * Returns the number of steps (including pending edits)
+	 */
+	public int jsGet_length() {
+		synchronized (editLock) {
+			return staged.notes.length;
+		}
+	}
+
+	/**
+	 * Returns the step played most recently, or -1
+	 */
+	public int jsGet_position() { return position; }
+
+	/**
+	 * Plays the step due on a tick, if any. Staged edits are applied first
+	 * when the pattern wraps around. Invoked on the clock thread by the
+	 * MidiIoObject.
+	 */
+	void onTick(long tick) {
+		if (tick % stepTicks != 0) {
+			return;
+		}
+		if (nextStep < 0 || tick == 0) {
+			nextStep = (int)((tick / stepTicks) % active.notes.length);
+		}
+		int step = nextStep;
+		if (step == 0 && isDirty) {
+			synchronized (editLock) {
+				if (active.notes.length != staged.notes.length) {
+					active = new PatternSteps(staged.notes.length);
+				}
+				active.copyFrom(staged);
+				isDirty = false;
+			}
+		}
+		nextStep = (step + 1) % active.notes.length;
+		position = step;
+		int velocity = active.velocities[step];
+		if (isMuted || velocity == 0) {
+			return;
+		}
+		double probability = active.probabilities[step];
+		if (probability < 1 && random.nextDouble() >= probability) {
+			return;
+		}
+		int tickLength = (int)Math.max(Math.round(active.lengths[step] * stepTicks), 1);
+		out.writeAtTick(ShortMessage.NOTE_ON, channel, active.notes[step], velocity, tickLength);
+	}
+
+	/**
+	 * Throws if a step index is out of range. Only called while holding
+	 * editLock.
+	 */
+	private void checkStep(int step) {
+		if (step < 0 || step >= staged.notes.length) {
+			throw new IllegalArgumentException("Invalid step " + step + "; expected 0 to " + (staged.notes.length - 1));
+		}
+	}
+
+}
+
+/**
+ * Simple struct of the steps of a pattern
+ */
+class PatternSteps {
+
+	final int[] notes;
+	final int[] velocities;
+	final double[] lengths;
+	final double[] probabilities;
+
+	PatternSteps(int steps) {
+		notes = new int[steps];
+		velocities = new int[steps];
+		lengths = new double[steps];
+		probabilities = new double[steps];
+		for (int i = 0; i < steps; i++) {
+			notes[i] = 60;
+			lengths[i] = 1;
+			probabilities[i] = 1;
+		}
+	}
+
+	/**
+	 * Copies as many steps as fit from another set of steps
+	 */
+	void copyFrom(PatternSteps other) {
+		int n = Math.min(notes.length, other.notes.length);
+		System.arraycopy(other.notes, 0, notes, 0, n);
+		System.arraycopy(other.velocities, 0, velocities, 0, n);
+		System.arraycopy(other.lengths, 0, lengths, 0, n);
+		System.arraycopy(other.probabilities, 0, probabilities, 0, n);
+	}
+
+}
@@ -0,0 +1,168 @@
+package cc.atoi.inkfish;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of int values keyed by long (e.g., packed MIDI messages
+ * keyed by the tick at which they are due). Implemented as a binary min-heap
+ * over primitive arrays, so adding and polling are O(log n) and allocate
+ * nothing unless the queue has to grow. Values with equal keys are polled in
+ * the order they were added. This class is not synchronized.
+ */
+class ScheduleQueue {
+
+	/**
+	 * Heap-ordered keys
+	 */
+	private long[] keys;
+
+	/**
+	 * Insertion sequence numbers, used to break ties between equal keys
+	 */
+	private long[] seqs;
+
+	/**
+	 * Values, parallel to keys
+	 */
+	private int[] values;
+
+	/**
+	 * Number of entries in the queue
+	 */
+	private int size = 0;
+
+	/**
+	 * Sequence number given to the next added entry
+	 */
+	private long nextSeq = 0;
+
+	/**
+	 * Makes an empty queue with room for 64 entries
+	 */
+	ScheduleQueue() {
+		this(64);
+	}
+
+	/**
+	 * Makes an empty queue
+	 * @param capacity initial number of entries the queue can hold
+	 */
+	ScheduleQueue(int capacity) {
+		capacity = Math.max(capacity, 2);
+		keys = new long[capacity];
+		seqs = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Returns the number of entries in the queue
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the queue has no entries
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the lowest key in the queue. Only valid if the queue is not
+	 * empty.
+	 */
+	long peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Adds a value to the queue
+	 * @param key	sort key (lowest is polled first)
+	 * @param value	value to store
+	 */
+	void add(long key, int value) {
+		if (size == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			seqs = Arrays.copyOf(seqs, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		long seq = nextSeq++;
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(key, seq, parent)) {
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		keys[i] = key;
+		seqs[i] = seq;
+		values[i] = value;
+	}
+
+	/**
+	 * Removes the entry with the lowest key and returns its value. Only valid
+	 * if the queue is not empty.
+	 */
+	int poll() {
+		int result = values[0];
+		int last = --size;
+		if (last > 0) {
+			long key = keys[last];
+			long seq = seqs[last];
+			int value = values[last];
+			int i = 0;
+			int half = last >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+				if (right < last && before(keys[right], seqs[right], keys[child], seqs[child])) {
+					child = right;
+				}
+				if (!before(keys[child], seqs[child], key, seq)) {
+					break;
+				}
+				move(child, i);
+				i = child;
+			}
+			keys[i] = key;
+			seqs[i] = seq;
+			values[i] = value;
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns true if (key, seq) sorts before the entry at index i
+	 */
+	private boolean before(long key, long seq, int i) {
+		return before(key, seq, keys[i], seqs[i]);
+	}
+
+	/**
+	 * Returns true if (keyA, seqA) sorts before (keyB, seqB)
+	 */
+	private static boolean before(long keyA, long seqA, long keyB, long seqB) {
+		return keyA < keyB || (keyA == keyB && seqA < seqB);
+	}
+
+	/**
+	 * Copies the entry at index from to index to
+	 */
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		seqs[to] = seqs[from];
+		values[to] = values[from];
+	}
+
+}
@@ -0,0 +1,220 @@
+package cc.atoi.inkfish;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * Compiles user scripts at a given Rhino optimization level. When compiling
+ * to bytecode (optimization level 0 or higher), the generated classes are
+ * stored in a cache directory under a hash of the script's name, source,
+ * optimization level and Rhino version, so unchanged scripts are not
+ * recompiled on the next run.
+ */
+public class ScriptCompiler {
+
+	/**
+	 * Rhino optimization level (-1 for interpreted mode, 0 to 9 for bytecode)
+	 */
+	private int optimizationLevel;
+
+	/**
+	 * Directory of cached compiled scripts, or null to disable caching
+	 */
+	private File cacheDir;
+
+	/**
+	 * Sets up a compiler
+	 * @param optimizationLevel	Rhino optimization level (-1 to 9)
+	 * @param cacheDir			directory of cached compiled scripts, or null
+	 * 							to disable caching
+	 */
+	public ScriptCompiler(int optimizationLevel, File cacheDir) {
+		if (!Context.isValidOptimizationLevel(optimizationLevel)) {
+			throw new IllegalArgumentException("Invalid optimization level " + optimizationLevel + "; expected -1 to 9");
+		}
+		this.optimizationLevel = optimizationLevel;
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Returns the Rhino optimization level
+	 */
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+
+	/**
+	 * Compiles a script file
+	 * @param cx	runtime context of the calling thread
+	 * @param file	script file
+	 * @return the compiled script
+	 * @throws IOException
+	 */
+	public Script compile(Context cx, File file) throws IOException {
+		byte[] buffer = new byte[(int)file.length()];
+		DataInputStream fin = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			fin.readFully(buffer);
+		}
+		finally {
+			fin.close();
+		}
+		return compile(cx, new String(buffer), file.getName());
+	}
+
+	/**
+	 * Compiles a script, loading it from the cache if possible
+	 * @param cx			runtime context of the calling thread
+	 * @param source		script source
+	 * @param sourceName	name of script used in error messages
+	 * @return the compiled script
+	 */
+	public Script compile(Context cx, String source, String sourceName) {
+
+		cx.setOptimizationLevel(optimizationLevel);
+
+		// Interpreted scripts have no bytecode to cache
+		if (optimizationLevel < 0 || cacheDir == null) {
+			return cx.compileString(source, sourceName, 1, null);
+		}
+
+		String hash = hash(optimizationLevel + "\0" + cx.getImplementationVersion() + "\0" + sourceName + "\0" + source);
+		File cacheFile = new File(cacheDir, hash + ".bin");
+
+		// Load from cache if present. A bad cache file is a cache miss.
+		if (cacheFile.isFile()) {
+			try {
+				return load(cx, readCache(cacheFile));
+			}
+			catch (Exception e) {
+				System.err.println("Ignoring unreadable script cache " + cacheFile.getAbsolutePath() + " (" + e + ")");
+			}
+			catch (LinkageError e) {
+				System.err.println("Ignoring invalid script cache " + cacheFile.getAbsolutePath() + " (" + e + ")");
+			}
+			cacheFile.delete();
+		}
+
+		// Otherwise compile to bytecode and cache the result
+		CompilerEnvirons env = new CompilerEnvirons();
+		env.initFromContext(cx);
+		env.setOptimizationLevel(optimizationLevel);
+		Object[] classes = new ClassCompiler(env).compileToClassFiles(source, sourceName, 1, "inkfish.script.Script" + hash);
+		try {
+			writeCache(cacheFile, classes);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to write script cache " + cacheFile.getAbsolutePath() + " (" + e.getMessage() + ")");
+		}
+		try {
+			return load(cx, classes);
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Unable to load compiled script " + sourceName, e);
+		}
+	}
+
+	/**
+	 * Defines compiled classes and instantiates the main (first) class
+	 * @param cx		runtime context of the calling thread
+	 * @param classes	alternating class names and bytecode
+	 */
+	private Script load(Context cx, Object[] classes) throws InstantiationException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+		GeneratedClassLoader loader = cx.createClassLoader(ScriptCompiler.class.getClassLoader());
+		Class<?> main = null;
+		for (int i = 0; i < classes.length; i += 2) {
+			Class<?> c = loader.defineClass((String)classes[i], (byte[])classes[i + 1]);
+			loader.linkClass(c);
+			if (main == null) {
+				main = c;
+			}
+		}
+		return (Script)main.getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Reads alternating class names and bytecode from a cache file. Counts
+	 * and lengths are checked against the file size so a corrupt file cannot
+	 * make us allocate huge arrays.
+	 */
+	private Object[] readCache(File file) throws IOException {
+		long size = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			// Each class takes at least 6 bytes (name length and bytecode length)
+			int count = in.readInt();
+			if (count <= 0 || count > size / 6) {
+				throw new IOException("Invalid class count " + count);
+			}
+			Object[] classes = new Object[count * 2];
+			for (int i = 0; i < classes.length; i += 2) {
+				classes[i] = in.readUTF();
+				int length = in.readInt();
+				if (length <= 0 || length > size) {
+					throw new IOException("Invalid class length " + length);
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				classes[i + 1] = bytes;
+			}
+			return classes;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes alternating class names and bytecode to a cache file. The file
+	 * is written under a temporary name first so readers never see a
+	 * partial file.
+	 */
+	private void writeCache(File file, Object[] classes) throws IOException {
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Unable to create directory");
+		}
+		File temp = new File(cacheDir, file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(classes.length / 2);
+			for (int i = 0; i < classes.length; i += 2) {
+				byte[] bytes = (byte[])classes[i + 1];
+				out.writeUTF((String)classes[i]);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to rename " + temp.getName());
+		}
+	}
+
+	/**
+	 * Returns the hex SHA-1 digest of a string
+	 */
+	private static String hash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (int i = 0; i < digest.length; i++) {
+				hex.append(String.format("%02x", digest[i] & 0xFF));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
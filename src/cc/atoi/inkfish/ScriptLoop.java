@@ -0,0 +1,419 @@
+package cc.atoi.inkfish;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+import org.mozilla.javascript.*;
+
+/**
+ * Runs all user JavaScript on a single thread. The script thread enters a
+ * Rhino Context once and keeps it for its whole life. Clock, MIDI and plugin
+ * threads post events to the loop instead of calling into JavaScript
+ * themselves, and events are handled in the order they were posted.
+ * 
+ * Events travel through a lock-free multi-producer, single-consumer ring of
+ * preallocated slots. A producer claims a sequence number, fills the slot and
+ * then publishes it by writing the sequence number into the slot. The script
+ * thread takes slots strictly in sequence order and parks when the next slot
+ * is not yet published. If the ring is full, producers yield until the script
+ * thread catches up, except for ticks and offered calls: these are posted
+ * from the clock thread, which must never block, so they are dropped and
+ * counted instead.
+ */
+public class ScriptLoop implements Runnable {
+
+	/**
+	 * Event types
+	 */
+	private static final int TICK = 0;
+	private static final int MIDI_IN = 1;
+	private static final int CALL = 2;
+
+	/**
+	 * Shared instance
+	 */
+	private static ScriptLoop instance;
+
+	/**
+	 * Number of slots in the ring (a power of two)
+	 */
+	private static final int CAPACITY = 4096;
+
+	/**
+	 * Preallocated event slots
+	 */
+	private final ScriptEvent[] ring = new ScriptEvent[CAPACITY];
+
+	/**
+	 * Next sequence number to be claimed by a producer
+	 */
+	private final AtomicLong claimed = new AtomicLong(0);
+
+	/**
+	 * Number of events taken off the ring by the script thread
+	 */
+	private volatile long consumed = 0;
+
+	/**
+	 * Script thread, for unparking
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Whether the script thread is parked (or about to park) waiting for
+	 * events
+	 */
+	private volatile boolean waiting = false;
+
+	/**
+	 * Sequence number from which events are held back, or Long.MAX_VALUE
+	 */
+	private volatile long heldFrom = Long.MAX_VALUE;
+
+	/**
+	 * Number of events dropped because the ring was full
+	 */
+	private final AtomicLong droppedCount = new AtomicLong(0);
+
+	/**
+	 * Longest time in nanoseconds an event has waited between being posted
+	 * and being handled
+	 */
+	private volatile long maxLatency = 0;
+
+	/**
+	 * Handler of tick and MIDI events
+	 */
+	private volatile ScriptLoopListener listener;
+
+	/**
+	 * Name of the user script being run, or null
+	 */
+	private volatile String runningScript = null;
+
+	/**
+	 * Tick deadline of the event being handled (script thread only)
+	 */
+	private long dueNanos = MidiOutput.NO_DEADLINE;
+
+	/**
+	 * Returns the shared instance, starting the script thread on first use
+	 */
+	public static synchronized ScriptLoop getInstance() {
+		if (instance == null) {
+			instance = new ScriptLoop();
+			new Thread(instance, "inkfish-script").start();
+		}
+		return instance;
+	}
+
+	private ScriptLoop() {
+		for (int i = 0; i < CAPACITY; i++) {
+			ring[i] = new ScriptEvent();
+		}
+	}
+
+	/**
+	 * Sets the handler of tick and MIDI events. Events posted while there is
+	 * no handler are dropped.
+	 */
+	public void setListener(ScriptLoopListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Posts a sequencer tick, or drops it if the ring is full
+	 * @param tick		tick value
+	 * @param dueNanos	deadline of the tick (see InkClock.getTickNanos())
+	 * @return false if the tick was dropped
+	 */
+	public boolean postTick(long tick, long dueNanos) {
+		long seq = tryClaim();
+		if (seq < 0) {
+			return false;
+		}
+		ScriptEvent e = ring[(int)seq & (CAPACITY - 1)];
+		e.type = TICK;
+		e.tick = tick;
+		e.dueNanos = dueNanos;
+		publish(e, seq);
+		return true;
+	}
+
+	/**
+	 * Posts an incoming MIDI message
+	 * @param device	MIDI input device
+	 * @param msg		message received
+	 * @param ts		timestamp of message
+	 */
+	public void postMidiIn(MidiInput device, MidiMessage msg, long ts) {
+		long seq = claim();
+		ScriptEvent e = ring[(int)seq & (CAPACITY - 1)];
+		e.type = MIDI_IN;
+		e.device = device;
+		e.msg = msg;
+		e.ts = ts;
+		e.dueNanos = MidiOutput.NO_DEADLINE;
+		publish(e, seq);
+	}
+
+	/**
+	 * Posts a call to a JavaScript function
+	 * @param func	function to call
+	 * @param scope	scope to call the function in (also used as "this")
+	 * @param args	arguments to pass in
+	 */
+	public void postCall(Function func, Scriptable scope, Object[] args) {
+		fillCall(claim(), func, scope, args, MidiOutput.NO_DEADLINE);
+	}
+
+	/**
+	 * Posts a call to a JavaScript function for a sequencer tick, or drops it
+	 * if the ring is full. For use on the clock thread.
+	 * @param func		function to call
+	 * @param scope		scope to call the function in (also used as "this")
+	 * @param args		arguments to pass in
+	 * @param dueNanos	deadline of the tick (see InkClock.getTickNanos())
+	 * @return false if the call was dropped
+	 */
+	public boolean offerCall(Function func, Scriptable scope, Object[] args, long dueNanos) {
+		long seq = tryClaim();
+		if (seq < 0) {
+			return false;
+		}
+		fillCall(seq, func, scope, args, dueNanos);
+		return true;
+	}
+
+	/**
+	 * Fills and publishes a claimed slot with a call
+	 */
+	private void fillCall(long seq, Function func, Scriptable scope, Object[] args, long dueNanos) {
+		ScriptEvent e = ring[(int)seq & (CAPACITY - 1)];
+		e.type = CALL;
+		e.func = func;
+		e.scope = scope;
+		e.args = args;
+		e.dueNanos = dueNanos;
+		publish(e, seq);
+	}
+
+	/**
+	 * Returns the tick deadline of the event being handled if invoked on the
+	 * script thread while handling a tick or a call posted for a tick, so
+	 * that messages written by scripts can be sent ahead of time with
+	 * lookahead. Returns MidiOutput.NO_DEADLINE otherwise (e.g. while
+	 * handling incoming MIDI, whose echoes should go out right away).
+	 */
+	public long getDueNanos() {
+		return Thread.currentThread() == thread ? dueNanos : MidiOutput.NO_DEADLINE;
+	}
+
+	/**
+	 * Sets the name of the user script being run (at load or reload), or
+	 * null once it has run. Patterns and subscriptions created meanwhile
+	 * belong to the script.
+	 */
+	public void setRunningScript(String name) {
+		this.runningScript = name;
+	}
+
+	/**
+	 * Returns the name of the user script being run, or null if none is
+	 * (e.g. while handling callbacks)
+	 */
+	public String getRunningScript() {
+		return runningScript;
+	}
+
+	/**
+	 * Returns the number of events posted but not yet handled
+	 */
+	public long getDepth() {
+		return Math.max(claimed.get() - consumed, 0);
+	}
+
+	/**
+	 * Returns the number of ticks and calls dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Waits until every event posted so far (and any posted while handling
+	 * them) has been handled. Must not be called while events are held.
+	 */
+	public void awaitIdle() {
+		while (consumed < claimed.get()) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Holds back events posted from now on until release() is called, so an
+	 * offline sequencer can let its tick listeners finish before scripts run
+	 */
+	public void hold() {
+		heldFrom = claimed.get();
+	}
+
+	/**
+	 * Lets held events be handled
+	 */
+	public void release() {
+		heldFrom = Long.MAX_VALUE;
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Returns the longest time in nanoseconds an event has waited between
+	 * being posted and being handled
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Resets the maximum latency to 0
+	 */
+	public void resetMaxLatency() {
+		maxLatency = 0;
+	}
+
+	/**
+	 * Claims the next sequence number, yielding while the ring is full
+	 */
+	private long claim() {
+		long seq = claimed.getAndIncrement();
+		while (seq - consumed >= CAPACITY) {
+			Thread.yield();
+		}
+		return seq;
+	}
+
+	/**
+	 * Claims the next sequence number, or returns -1 and counts a drop if the
+	 * ring is full
+	 */
+	private long tryClaim() {
+		while (true) {
+			long seq = claimed.get();
+			if (seq - consumed >= CAPACITY) {
+				droppedCount.incrementAndGet();
+				return -1;
+			}
+			if (claimed.compareAndSet(seq, seq + 1)) {
+				return seq;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a filled slot and wakes the script thread if it is parked
+	 */
+	private void publish(ScriptEvent e, long seq) {
+		e.posted = System.nanoTime();
+		e.sequence = seq;
+		if (waiting) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Invoked on the script thread. Enters a Context and handles events until
+	 * interrupted.
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		Context cx = Context.enter();
+		try {
+			long seq = consumed;
+			while (!thread.isInterrupted()) {
+
+				// Wait for the next slot to be published
+				ScriptEvent e = ring[(int)seq & (CAPACITY - 1)];
+				if (e.sequence != seq || seq >= heldFrom) {
+					waiting = true;
+					if (e.sequence != seq || seq >= heldFrom) {
+						LockSupport.park(this);
+					}
+					waiting = false;
+					continue;
+				}
+
+				// Track latency
+				long latency = System.nanoTime() - e.posted;
+				if (latency > maxLatency) {
+					maxLatency = latency;
+				}
+
+				try {
+					dueNanos = e.dueNanos;
+					dispatch(cx, e);
+				}
+				catch (RhinoException ex) {
+					System.err.println("js> " + ex.getMessage());
+				}
+				catch (RuntimeException ex) {
+					// Keep the only script thread alive, or producers and
+					// awaitIdle() would wait for it forever
+					System.err.println("js> " + ex);
+				}
+
+				// Release references and hand the slot back to producers
+				dueNanos = MidiOutput.NO_DEADLINE;
+				e.device = null;
+				e.msg = null;
+				e.func = null;
+				e.scope = null;
+				e.args = null;
+				consumed = ++seq;
+			}
+		}
+		finally {
+			Context.exit();
+		}
+	}
+
+	/**
+	 * Handles a single event
+	 */
+	private void dispatch(Context cx, ScriptEvent e) {
+		ScriptLoopListener l = listener;
+		switch (e.type) {
+			case TICK:
+				if (l != null) l.onScriptTick(cx, e.tick);
+				break;
+			case MIDI_IN:
+				if (l != null) l.onScriptMidiIn(cx, e.device, e.msg, e.ts);
+				break;
+			case CALL:
+				e.func.call(cx, e.scope, e.scope, e.args);
+				break;
+		}
+	}
+
+}
+
+/**
+ * Simple struct of an event posted to a ScriptLoop
+ */
+class ScriptEvent {
+
+	volatile long sequence = -1;
+	long posted;
+	int type;
+	long tick;
+	long dueNanos;
+	MidiInput device;
+	MidiMessage msg;
+	long ts;
+	Function func;
+	Scriptable scope;
+	Object[] args;
+
+}
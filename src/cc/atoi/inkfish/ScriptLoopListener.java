@@ -0,0 +1,28 @@
+package cc.atoi.inkfish;
+
+import javax.sound.midi.*;
+import org.mozilla.javascript.Context;
+
+/**
+ * Something that handles events posted to a ScriptLoop. All methods are
+ * invoked on the script thread.
+ */
+public interface ScriptLoopListener {
+
+	/**
+	 * Invoked for a sequencer tick posted with ScriptLoop.postTick
+	 * @param cx	the script thread's runtime context
+	 * @param tick	tick value
+	 */
+	public void onScriptTick(Context cx, long tick);
+
+	/**
+	 * Invoked for a MIDI message posted with ScriptLoop.postMidiIn
+	 * @param cx		the script thread's runtime context
+	 * @param device	MIDI input device
+	 * @param msg		message received
+	 * @param ts		timestamp of message
+	 */
+	public void onScriptMidiIn(Context cx, MidiInput device, MidiMessage msg, long ts);
+
+}
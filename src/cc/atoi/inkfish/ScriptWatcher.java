@@ -0,0 +1,131 @@
+package cc.atoi.inkfish;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import org.mozilla.javascript.*;
+
+/**
+ * Watches a directory for changed *.js files and recompiles them on its own
+ * thread. Scripts that fail to compile are reported and not passed on, so
+ * the listener keeps running the previous version.
+ */
+public class ScriptWatcher implements Runnable {
+
+	/**
+	 * Time in milliseconds to wait for further changes before compiling, so
+	 * that editors writing a file in several steps trigger one compile
+	 */
+	private static final long SETTLE_MILLIS = 100;
+
+	/**
+	 * Directory to watch
+	 */
+	private File dir;
+
+	/**
+	 * Compiles changed scripts
+	 */
+	private ScriptCompiler compiler;
+
+	/**
+	 * Receives compiled scripts
+	 */
+	private ScriptWatcherListener listener;
+
+	/**
+	 * Watch service registered on dir
+	 */
+	private WatchService watchService;
+
+	/**
+	 * Sets up a watcher. Call start() to begin watching.
+	 * @param dir		directory to watch
+	 * @param compiler	compiles changed scripts
+	 * @param listener	receives compiled scripts
+	 * @throws IOException
+	 */
+	public ScriptWatcher(File dir, ScriptCompiler compiler, ScriptWatcherListener listener) throws IOException {
+		this.dir = dir;
+		this.compiler = compiler;
+		this.listener = listener;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Starts watching on a background thread
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "inkfish-script-watcher");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Invoked on the watcher thread
+	 */
+	public void run() {
+		LinkedHashSet<String> changed = new LinkedHashSet<String>();
+		try {
+			while (true) {
+
+				// Collect changed scripts until things settle down
+				WatchKey key = changed.isEmpty() ? watchService.take() : watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						Object context = event.context();
+						if (context instanceof Path && context.toString().toLowerCase().endsWith(".js")) {
+							changed.add(context.toString());
+						}
+					}
+					key.reset();
+					continue;
+				}
+
+				// Compile them
+				for (String name : changed) {
+					compile(name);
+				}
+				changed.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// Exit loop
+		}
+		catch (ClosedWatchServiceException e) {
+			// Exit loop
+		}
+	}
+
+	/**
+	 * Compiles a script and passes it to the listener if successful. Errors
+	 * are reported rather than thrown so the watcher keeps running.
+	 */
+	private void compile(String name) {
+		File file = new File(dir, name);
+		if (!file.isFile()) {
+			return;
+		}
+		Context cx = Context.enter();
+		try {
+			listener.onScriptChanged(name, compiler.compile(cx, file));
+		}
+		catch (RhinoException e) {
+			System.err.println("js> " + e.getMessage() + "; keeping previous version of " + name);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read " + file.getAbsolutePath() + "; keeping previous version");
+		}
+		catch (RuntimeException e) {
+			System.err.println("Unable to compile " + file.getAbsolutePath() + " (" + e + "); keeping previous version");
+		}
+		finally {
+			Context.exit();
+		}
+	}
+
+}
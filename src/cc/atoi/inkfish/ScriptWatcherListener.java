@@ -0,0 +1,18 @@
+package cc.atoi.inkfish;
+
+import org.mozilla.javascript.Script;
+
+/**
+ * Something that will be told when a ScriptWatcher has recompiled a script
+ */
+public interface ScriptWatcherListener {
+
+	/**
+	 * Invoked on the watcher thread after a changed script compiled
+	 * successfully
+	 * @param name		file name of the script
+	 * @param script	compiled script
+	 */
+	public void onScriptChanged(String name, Script script);
+
+}
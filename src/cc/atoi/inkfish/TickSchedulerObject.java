@@ -0,0 +1,284 @@
+package cc.atoi.inkfish;
+
+import org.mozilla.javascript.*;
+
+/**
+ * Calls JavaScript functions at musical rates, independent of the tick
+ * divisor. Subscriptions are checked natively on every tick, and only ticks
+ * that are due for at least one subscription cross into JavaScript, so the
+ * sequencer can run at a high PPQN (such as 960) without flooding scripts
+ * with calls.
+ *
+ * Rates are given as note lengths such as "1/4", "1/16", "1/8t" (triplet),
+ * "1/8." (dotted) or "2" (two whole notes), or as a number of ticks.
+ */
+public class TickSchedulerObject extends ScriptableObject implements Scriptable, InkClockListener {
+
+	/**
+	 * Required for serialization
+	 */
+	private static final long serialVersionUID = -4562304934731370952L;
+
+	/**
+	 * Number of ticks per quarter note
+	 */
+	private int ppqn;
+
+	/**
+	 * Sequencer driving this scheduler
+	 */
+	private InkClock clock;
+
+	/**
+	 * Scope in which callbacks are called
+	 */
+	private Scriptable scope;
+
+	/**
+	 * Current subscriptions. Replaced rather than modified, so the clock
+	 * thread can read it without locking.
+	 */
+	private volatile TickSubscription[] subscriptions = new TickSubscription[0];
+
+	/**
+	 * Subscriptions that nextDue was computed for (clock thread only)
+	 */
+	private TickSubscription[] seen = null;
+
+	/**
+	 * Earliest tick at which any subscription is due (clock thread only)
+	 */
+	private long nextDue = 0;
+
+	/**
+	 * Id of the next subscription
+	 */
+	private int nextId = 1;
+
+	public TickSchedulerObject() { }
+
+	public String getClassName() { return "TickSchedulerObject"; }
+
+	public void jsConstructor() { }
+
+	/**
+	 * Initializes the scheduler and listens to the sequencer
+	 * @param clock	sequencer
+	 * @param ppqn	number of ticks per quarter note
+	 * @param scope	scope in which callbacks are called
+	 */
+	public void initialize(InkClock clock, int ppqn, Scriptable scope) {
+		this.ppqn = ppqn;
+		this.scope = scope;
+		this.clock = clock;
+		clock.addListener(this);
+	}
+
+	/**
+	 * Calls a function every time a rate elapses, passing in the number of
+	 * times it has elapsed since tick 0 and the tick. Returns an id for
+	 * cancel().
+	 * @param rate		note length (e.g., "1/16") or number of ticks
+	 * @param func		function to call
+	 * @param offset	optional note length or number of ticks to delay each
+	 * 					call by, e.g. "1/16" with a rate of "1/8" for offbeats
+	 */
+	public synchronized int jsFunction_every(Object rate, Function func, Object offset) {
+		long interval = toTicks(rate, ppqn);
+		if (interval < 1) {
+			throw new IllegalArgumentException("Invalid rate " + Context.toString(rate) + "; must be at least 1 tick");
+		}
+		long phase = offset == Undefined.instance || offset == null ? 0 : toTicks(offset, ppqn) % interval;
+		TickSubscription[] current = subscriptions;
+		TickSubscription[] next = new TickSubscription[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = new TickSubscription(nextId, interval, phase, func, ScriptLoop.getInstance().getRunningScript());
+		subscriptions = next;
+		return nextId++;
+	}
+
+	/**
+	 * Stops calling the function of a subscription. Returns false if there
+	 * was no such subscription.
+	 * @param id id returned by every()
+	 */
+	public synchronized boolean jsFunction_cancel(int id) {
+		TickSubscription[] current = subscriptions;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].id == id) {
+				TickSubscription[] next = new TickSubscription[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				subscriptions = next;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops calling the functions subscribed by a user script and returns
+	 * their subscriptions
+	 * @param script name of the script (see ScriptLoop.getRunningScript())
+	 */
+	synchronized TickSubscription[] removeSubscriptions(String script) {
+		TickSubscription[] current = subscriptions;
+		int kept = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (!script.equals(current[i].script)) {
+				kept++;
+			}
+		}
+		TickSubscription[] next = new TickSubscription[kept];
+		TickSubscription[] removed = new TickSubscription[current.length - kept];
+		int k = 0, r = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (script.equals(current[i].script)) {
+				removed[r++] = current[i];
+			}
+			else {
+				next[k++] = current[i];
+			}
+		}
+		subscriptions = next;
+		return removed;
+	}
+
+	/**
+	 * Puts back subscriptions returned by removeSubscriptions()
+	 */
+	synchronized void addSubscriptions(TickSubscription[] restored) {
+		TickSubscription[] current = subscriptions;
+		TickSubscription[] next = new TickSubscription[current.length + restored.length];
+		System.arraycopy(current, 0, next, 0, current.length);
+		System.arraycopy(restored, 0, next, current.length, restored.length);
+		subscriptions = next;
+	}
+
+	/**
+	 * Stops calling every subscribed function
+	 */
+	public synchronized void jsFunction_clear() {
+		subscriptions = new TickSubscription[0];
+	}
+
+	/**
+	 * Returns the number of ticks in a note length (or a number of ticks)
+	 * @param rate note length (e.g., "1/16") or number of ticks
+	 */
+	public double jsFunction_ticks(Object rate) {
+		return toTicks(rate, ppqn);
+	}
+
+	/**
+	 * Returns the number of ticks per quarter note
+	 */
+	public int jsGet_ppqn() { return ppqn; }
+
+	/**
+	 * Invoked on sequencer tick event. Posts calls for every subscription due
+	 * on this tick to the script loop, dropping them if it is full. Messages
+	 * written by the calls are sent for the tick's deadline.
+	 */
+	public void onTick(long tick) {
+		TickSubscription[] current = subscriptions;
+		if (current != seen) {
+			seen = current;
+			nextDue = tick;
+		}
+		if (tick < nextDue || current.length == 0) {
+			return;
+		}
+		long due = Long.MAX_VALUE;
+		for (int i = 0; i < current.length; i++) {
+			TickSubscription s = current[i];
+			if (tick < s.phase) {
+				due = Math.min(due, s.phase);
+				continue;
+			}
+			long count = (tick - s.phase) / s.interval;
+			if (tick - s.phase == count * s.interval) {
+				Object[] args = { count, tick };
+				ScriptLoop.getInstance().offerCall(s.func, scope, args, clock.getTickNanos());
+			}
+			due = Math.min(due, s.phase + (count + 1) * s.interval);
+		}
+		nextDue = due;
+	}
+
+	/**
+	 * Invoked when the sequencer starts; the tick may have been reset
+	 */
+	public void onStart(long tick) {
+		seen = null;
+	}
+
+	public void onStop(long tick) { }
+	public void onContinue(long tick) { }
+	public void onQuarterNote(long tick) { }
+
+	/**
+	 * Converts a note length such as "1/16", "1/8t" or "1/4." (or a number
+	 * of ticks) into a number of ticks
+	 * @param rate	note length or number of ticks
+	 * @param ppqn	number of ticks per quarter note
+	 */
+	static long toTicks(Object rate, int ppqn) {
+		if (rate instanceof Number) {
+			return ((Number)rate).longValue();
+		}
+		String spec = Context.toString(rate).trim();
+		String value = spec;
+		int numerator = 1;
+		int denominator = 1;
+		if (value.endsWith("t")) {
+			// Triplet: three in the time of two
+			numerator *= 2;
+			denominator *= 3;
+			value = value.substring(0, value.length() - 1);
+		}
+		else if (value.endsWith(".")) {
+			// Dotted: half again as long
+			numerator *= 3;
+			denominator *= 2;
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			String[] parts = value.split("/", 2);
+			numerator *= Integer.parseInt(parts[0].trim());
+			if (parts.length > 1) {
+				denominator *= Integer.parseInt(parts[1].trim());
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid rate " + spec + "; expected a note length such as 1/16, 1/8t or 1/8. or a number of ticks");
+		}
+		long ticks = 4L * ppqn * numerator;
+		if (denominator <= 0 || ticks % denominator != 0) {
+			throw new IllegalArgumentException("Invalid rate " + spec + "; not a whole number of ticks at " + ppqn + " PPQN");
+		}
+		return ticks / denominator;
+	}
+
+}
+
+/**
+ * Simple struct of a function called at a fixed tick interval
+ */
+class TickSubscription {
+
+	final int id;
+	final long interval;
+	final long phase;
+	final Function func;
+	final String script;
+
+	TickSubscription(int id, long interval, long phase, Function func, String script) {
+		this.id = id;
+		this.interval = interval;
+		this.phase = phase;
+		this.func = func;
+		this.script = script;
+	}
+
+}
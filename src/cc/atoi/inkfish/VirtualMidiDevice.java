@@ -0,0 +1,549 @@
+package cc.atoi.inkfish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+
+/**
+ * An in-process MIDI device for machines without MIDI hardware. Messages
+ * sent to any of its receivers come back out of all of its transmitters, so
+ * the same virtual device can be opened as an output by one part of Inkfish
+ * and as an input (or sequencer) by another.
+ *
+ * Messages pass through a lock-free ring buffer and are delivered on a
+ * thread of their own, as with a hardware port. Short messages are copied
+ * into the ring without allocating; other messages are cloned. Like a
+ * hardware port, each delivery is a new message, since receivers (such as
+ * the script loop) may keep it.
+ *
+ * A clock device transmits START followed by MIDI clock pulses (24 per
+ * quarter note) while open, starting once something listens to it. Instead
+ * of looping messages back, its receivers control it: START restarts the
+ * clock, STOP stops it and CONTINUE resumes it, passing each on to the
+ * transmitters. TIMING_CLOCK while stopped steps the clock by a single
+ * pulse, sending CONTINUE before the first step so that listeners count
+ * it; STOP ends stepping. The tempo is taken from the device name and can be changed with
+ * setClockTempo().
+ */
+public class VirtualMidiDevice implements MidiDevice, Runnable {
+
+	/**
+	 * Number of ring slots (must be a power of 2)
+	 */
+	static final int CAPACITY = 1024;
+
+	/**
+	 * Prefix of virtual device names
+	 */
+	public static final String PREFIX = "virtual:";
+
+	/**
+	 * Prefix of virtual clock device names, followed by the tempo
+	 */
+	public static final String CLOCK_PREFIX = PREFIX + "clock:";
+
+	/**
+	 * Device info
+	 */
+	private final MidiDevice.Info info;
+
+	/**
+	 * Initial tempo of the generated clock in beats per minute, or 0 for a
+	 * loopback device
+	 */
+	private final double clockTempo;
+
+	/**
+	 * Clock generator while open, or null
+	 */
+	private volatile VirtualClock clock = null;
+
+	/**
+	 * Short messages in ring slots, packed as status | data1 << 8 | data2 << 16
+	 */
+	private final int[] shortRing = new int[CAPACITY];
+
+	/**
+	 * Other messages in ring slots, or null for short messages
+	 */
+	private final MidiMessage[] longRing = new MidiMessage[CAPACITY];
+
+	/**
+	 * Sequence number published in each ring slot
+	 */
+	private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+	/**
+	 * Next sequence number to be claimed by a producer
+	 */
+	private final AtomicLong claimed = new AtomicLong(0);
+
+	/**
+	 * Number of messages taken off the ring by the delivery thread
+	 */
+	private volatile long consumed = 0;
+
+	/**
+	 * Whether the delivery thread is parked (or about to park) waiting for
+	 * messages
+	 */
+	private volatile boolean waiting = false;
+
+	/**
+	 * Open transmitters. Replaced rather than modified, so the delivery
+	 * thread can read it without locking.
+	 */
+	private volatile VirtualTransmitter[] transmitters = new VirtualTransmitter[0];
+
+	/**
+	 * Thread delivering messages. Null when the device is closed.
+	 */
+	private volatile Thread thread = null;
+
+	/**
+	 * Thread generating clock pulses, or null
+	 */
+	private volatile Thread clockThread = null;
+
+	/**
+	 * Tempo of the generated clock in beats per minute, kept across opens
+	 */
+	private volatile double tempo;
+
+	/**
+	 * Number of times the device has been opened but not closed
+	 */
+	private int openCount = 0;
+
+	/**
+	 * Creates a virtual device from its name, e.g. "virtual:drums" for a
+	 * loopback device or "virtual:clock:120" for a clock at 120 BPM
+	 * @param name device name
+	 */
+	public VirtualMidiDevice(String name) {
+		if (!name.startsWith(PREFIX) || name.length() == PREFIX.length()) {
+			throw new IllegalArgumentException("Invalid virtual device " + name + "; expected virtual:name or virtual:clock:bpm");
+		}
+		if (name.startsWith(CLOCK_PREFIX)) {
+			try {
+				this.clockTempo = Double.parseDouble(name.substring(CLOCK_PREFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid virtual clock " + name + "; expected virtual:clock:bpm");
+			}
+			if (!(clockTempo > 0)) {
+				throw new IllegalArgumentException("Invalid virtual clock " + name + "; tempo must be positive");
+			}
+		}
+		else {
+			this.clockTempo = 0;
+		}
+		this.tempo = clockTempo;
+		this.info = new VirtualMidiDeviceInfo(name, clockTempo > 0 ? "Virtual MIDI clock" : "Virtual MIDI loopback");
+		for (int i = 0; i < CAPACITY; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	public MidiDevice.Info getDeviceInfo() {
+		return info;
+	}
+
+	/**
+	 * Returns whether this device generates a clock rather than looping
+	 * messages back
+	 */
+	public boolean isClock() {
+		return clockTempo > 0;
+	}
+
+	/**
+	 * Opens the device, starting its delivery (and clock) thread on first
+	 * open
+	 */
+	public synchronized void open() {
+		if (openCount++ > 0) {
+			return;
+		}
+		thread = new Thread(this, "inkfish-" + info.getName());
+		thread.setDaemon(true);
+		thread.start();
+		if (clockTempo > 0) {
+			clock = new VirtualClock(this, tempo);
+			clockThread = new Thread(clock, "inkfish-" + info.getName() + "-pulse");
+			clockThread.setDaemon(true);
+			clockThread.start();
+		}
+	}
+
+	/**
+	 * Closes the device, stopping its threads once every open has been
+	 * matched by a close
+	 */
+	public synchronized void close() {
+		if (openCount == 0 || --openCount > 0) {
+			return;
+		}
+		Thread t = thread;
+		thread = null;
+		LockSupport.unpark(t);
+		if (clockThread != null) {
+			clockThread.interrupt();
+			clockThread = null;
+			clock = null;
+		}
+	}
+
+	/**
+	 * Sets the tempo of a clock device. Takes effect from the next pulse.
+	 * @param bpm tempo in beats (quarter notes) per minute
+	 */
+	public void setClockTempo(double bpm) {
+		if (!isClock()) {
+			throw new IllegalStateException("Virtual device " + info.getName() + " is not a clock");
+		}
+		if (!(bpm > 0)) {
+			throw new IllegalArgumentException("Tempo must be positive");
+		}
+		tempo = bpm;
+		VirtualClock current = clock;
+		if (current != null) {
+			current.setTempo(bpm);
+		}
+	}
+
+	/**
+	 * Returns the tempo of a clock device in beats per minute, or 0 for a
+	 * loopback device
+	 */
+	public double getClockTempo() {
+		return tempo;
+	}
+
+	public synchronized boolean isOpen() {
+		return openCount > 0;
+	}
+
+	/**
+	 * Virtual devices do not keep time, so outputs hold timestamped messages
+	 * back themselves
+	 */
+	public long getMicrosecondPosition() {
+		return -1;
+	}
+
+	public int getMaxReceivers() {
+		return -1;
+	}
+
+	public int getMaxTransmitters() {
+		return -1;
+	}
+
+	/**
+	 * Returns a receiver that loops messages back out of the transmitters,
+	 * or that controls the clock of a clock device
+	 */
+	public Receiver getReceiver() {
+		if (clockTempo > 0) {
+			return new Receiver() {
+				public void send(MidiMessage msg, long ts) {
+					VirtualClock current = clock;
+					if (current != null) {
+						current.control(msg.getStatus());
+					}
+				}
+				public void close() { }
+			};
+		}
+		return new Receiver() {
+			public void send(MidiMessage msg, long ts) {
+				post(msg);
+			}
+			public void close() { }
+		};
+	}
+
+	public List<Receiver> getReceivers() {
+		return new ArrayList<Receiver>(0);
+	}
+
+	/**
+	 * Returns a new transmitter of messages sent to this device
+	 */
+	public synchronized Transmitter getTransmitter() {
+		VirtualTransmitter[] current = transmitters;
+		VirtualTransmitter[] next = new VirtualTransmitter[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = new VirtualTransmitter(this);
+		transmitters = next;
+		return next[current.length];
+	}
+
+	public List<Transmitter> getTransmitters() {
+		return new ArrayList<Transmitter>(Arrays.asList(transmitters));
+	}
+
+	/**
+	 * Removes a closed transmitter
+	 */
+	synchronized void removeTransmitter(VirtualTransmitter transmitter) {
+		VirtualTransmitter[] current = transmitters;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == transmitter) {
+				VirtualTransmitter[] next = new VirtualTransmitter[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				transmitters = next;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether any transmitter has a receiver
+	 */
+	boolean isListenedTo() {
+		VirtualTransmitter[] current = transmitters;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].receiver != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages sent but not yet delivered
+	 */
+	public long getDepth() {
+		return Math.max(claimed.get() - consumed, 0);
+	}
+
+	/**
+	 * Queues a message for delivery, yielding while the ring is full. Safe
+	 * to call from any number of threads. Messages sent while the device is
+	 * closed are dropped.
+	 */
+	void post(MidiMessage msg) {
+		if (thread == null) {
+			return;
+		}
+		long seq = claimed.getAndIncrement();
+		while (seq - consumed >= CAPACITY && thread != null) {
+			Thread.yield();
+		}
+		int slot = (int)seq & (CAPACITY - 1);
+		if (msg instanceof ShortMessage) {
+			ShortMessage smsg = (ShortMessage)msg;
+			shortRing[slot] = smsg.getStatus() | smsg.getData1() << 8 | smsg.getData2() << 16;
+			longRing[slot] = null;
+		}
+		else {
+			longRing[slot] = (MidiMessage)msg.clone();
+		}
+		published.set(slot, seq);
+		if (waiting) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Invoked on the delivery thread. Hands queued messages to the receivers
+	 * of the transmitters until the device is closed.
+	 */
+	public void run() {
+		Thread self = Thread.currentThread();
+		long seq = consumed;
+		while (thread == self) {
+
+			// Wait for the next slot to be published
+			int slot = (int)seq & (CAPACITY - 1);
+			if (published.get(slot) != seq) {
+				waiting = true;
+				if (published.get(slot) != seq && thread == self) {
+					LockSupport.park(this);
+				}
+				waiting = false;
+				continue;
+			}
+
+			MidiMessage msg = longRing[slot];
+			if (msg == null) {
+				int packed = shortRing[slot];
+				ShortMessage smsg = new ShortMessage();
+				try {
+					smsg.setMessage(packed & 0xFF, (packed >> 8) & 0xFF, (packed >> 16) & 0xFF);
+				}
+				catch (InvalidMidiDataException e) {
+					consumed = ++seq;
+					continue;
+				}
+				msg = smsg;
+			}
+			longRing[slot] = null;
+			consumed = ++seq;
+
+			VirtualTransmitter[] current = transmitters;
+			for (int i = 0; i < current.length; i++) {
+				Receiver receiver = current[i].receiver;
+				if (receiver != null) {
+					receiver.send(msg, -1);
+				}
+			}
+		}
+	}
+
+}
+
+/**
+ * Generates START and clock pulses for a virtual clock device. Transport
+ * requests from other threads are carried out on the clock thread, so they
+ * are sent in order with the pulses.
+ */
+class VirtualClock implements Runnable {
+
+	/**
+	 * Number of clock pulses per quarter note
+	 */
+	static final int PPQN = 24;
+
+	private final VirtualMidiDevice device;
+	private volatile long pulseNanos;
+	private final AtomicInteger request = new AtomicInteger(0);
+	private final AtomicInteger steps = new AtomicInteger(0);
+	private volatile Thread thread;
+
+	VirtualClock(VirtualMidiDevice device, double tempo) {
+		this.device = device;
+		setTempo(tempo);
+	}
+
+	/**
+	 * Sets the tempo, taking effect from the next pulse
+	 */
+	void setTempo(double tempo) {
+		pulseNanos = Math.round(60000000000.0 / (tempo * PPQN));
+	}
+
+	/**
+	 * Requests START, STOP or CONTINUE, or a single step (TIMING_CLOCK)
+	 * while stopped. Other messages are ignored.
+	 */
+	void control(int status) {
+		switch (status) {
+			case ShortMessage.START:
+			case ShortMessage.STOP:
+			case ShortMessage.CONTINUE:
+				request.set(status);
+				break;
+			case ShortMessage.TIMING_CLOCK:
+				steps.incrementAndGet();
+				break;
+			default:
+				return;
+		}
+		LockSupport.unpark(thread);
+	}
+
+	public void run() {
+		thread = Thread.currentThread();
+		try {
+			ShortMessage pulse = new ShortMessage();
+			pulse.setMessage(ShortMessage.TIMING_CLOCK);
+			ShortMessage transport = new ShortMessage();
+			while (!device.isListenedTo()) {
+				if (thread.isInterrupted()) {
+					return;
+				}
+				LockSupport.parkNanos(1000000L);
+			}
+			request.compareAndSet(0, ShortMessage.START);
+			boolean isRunning = false;
+			boolean isStepping = false;
+			long deadline = 0;
+			while (!thread.isInterrupted()) {
+
+				// Carry out a transport request
+				int status = request.getAndSet(0);
+				if (status != 0) {
+					transport.setMessage(status);
+					device.post(transport);
+					isRunning = status != ShortMessage.STOP;
+					isStepping = false;
+					deadline = System.nanoTime();
+					steps.set(0);
+				}
+
+				// Step single pulses while stopped
+				if (!isRunning) {
+					if (steps.get() > 0) {
+						steps.decrementAndGet();
+						if (!isStepping) {
+							isStepping = true;
+							transport.setMessage(ShortMessage.CONTINUE);
+							device.post(transport);
+						}
+						device.post(pulse);
+					}
+					else {
+						LockSupport.park(this);
+					}
+					continue;
+				}
+
+				device.post(pulse);
+				deadline += pulseNanos;
+				NanoTimer.sleepUntil(deadline);
+			}
+		}
+		catch (InvalidMidiDataException e) {
+			return;
+		}
+	}
+
+}
+
+/**
+ * Transmitter of a virtual device
+ */
+class VirtualTransmitter implements Transmitter {
+
+	private final VirtualMidiDevice device;
+	volatile Receiver receiver;
+
+	VirtualTransmitter(VirtualMidiDevice device) {
+		this.device = device;
+	}
+
+	public void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	public Receiver getReceiver() {
+		return receiver;
+	}
+
+	public void close() {
+		receiver = null;
+		device.removeTransmitter(this);
+	}
+
+}
+
+/**
+ * Device info of a virtual device (MidiDevice.Info has no public
+ * constructor)
+ */
+class VirtualMidiDeviceInfo extends MidiDevice.Info {
+
+	VirtualMidiDeviceInfo(String name, String description) {
+		super(name, "Inkfish", description, "1.0");
+	}
+
+}